@@ -23,31 +23,60 @@ import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
 
 import android.content.Context;
+import android.net.Uri;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import me.touko.core.retry.ConcurrencyLimiter;
+import me.touko.core.retry.DeadLetterStore;
+import me.touko.core.retry.EvictionPolicy;
+import me.touko.core.retry.LeaseTable;
+import me.touko.core.retry.QueueManifest;
+import me.touko.core.retry.RetryBudget;
+import me.touko.core.retry.RetryPolicy;
+import me.touko.core.retry.TokenBucket;
+import me.touko.core.storage.AsyncObjStorage;
 import me.touko.core.storage.EncryptFileStorage;
 import me.touko.core.storage.FileStorage;
 import me.touko.core.storage.GsonObjStorage;
+import me.touko.core.storage.ObjCache;
+import me.touko.core.storage.ObservableStorage;
 import me.touko.core.storage.Storage;
-import me.touko.core.utils.CollectionUtils;
+import me.touko.core.utils.ExecutorFactory;
 import me.touko.core.utils.GsonFactory;
+import me.touko.core.utils.IOUtils;
 import me.touko.core.utils.MD5Utils;
 import me.touko.core.utils.MainThreadPostUtils;
+import me.touko.core.utils.MemoryPressureMonitor;
 import me.touko.core.utils.NetworkUtil;
+import me.touko.core.utils.RetryAfterUtils;
 import me.touko.okhttp2.util.RequestBodyUtil;
 
 /**
@@ -61,15 +90,47 @@ public class RetryRequestInterceptor implements Interceptor {
   private Context appContext;
 
   private GsonObjStorage<RequestWrapper> requestStorage;
+  private AsyncObjStorage<RequestWrapper> asyncRequestStorage;
+  // listen to memory pressure, removed from MemoryPressureMonitor when init again
+  private ObjCache<RequestWrapper> requestCache;
+  private LeaseTable requestLeases;
+  private QueueManifest queueManifest;
   private FutureTask<Void> initFuture;
   private OkHttpClient okHttpClient;
+  private FailureClassifier failureClassifier;
+  private DeadLetterStore<RequestWrapper> deadLetters;
+  private RequestHedger requestHedger;
 
-  private static final String KEY_SUFFIX_SENDING_QUEST = ".sending";
-  private final ExecutorService threadPool = Executors.newSingleThreadExecutor();
+  private static final String KEY_PREFIX_PENDING_REQUEST = "pending_";
+  private static final String KEY_PREFIX_SENDING_REQUEST = "sending_";
+  private static final String KEY_LEASE_JOURNAL = "sys_lease_journal";
+  private static final String KEY_QUEUE_MANIFEST = "sys_queue_manifest";
+  private static final long REQUEST_LEASE_MILLIS = 5 * 60 * 1000;
+  private static final String LEGACY_KEY_SUFFIX_SENDING_QUEST = ".sending";
+  private static final long MEMORY_PRESSURE_WINDOW_MILLIS = 60 * 1000;
+  private static final long SWEEP_SLICE_MILLIS = 50;
+  private static final long SWEEP_INTERVAL_MILLIS = 200;
+  private static final int SWEEP_BATCH_SIZE = 32;
+  private final ScheduledExecutorService threadPool = Executors.newSingleThreadScheduledExecutor();
 
-  private long preRetryTime;
+  private volatile long preRetryTime;
+  private ScheduledFuture<?> sweepFuture;
+  private long sweepTime;
+  private ScheduledFuture<?> retryFuture;
+  private long retryTime;
+  private final Random jitterRandom = new Random();
+  // rate limiters are only used by the drain on threadPool
+  private TokenBucket requestRateLimiter;
+  private TokenBucket byteRateLimiter;
+  private final Map<String, TokenBucket[]> hostRateLimiters = new HashMap<>();
+  private ConcurrencyLimiter sendLimiter;
+  private ExecutorService sendExecutor;
+  private RetryBudget retryBudget;
+  // the time each host allows next attempt, from the delay hints of its responses
+  private final Map<String, Long> hostNextAttemptTimes = new ConcurrentHashMap<>();
 
   private final Set<RetryResultListener> retryResultListeners = new HashSet<>();
+  private final Set<RetryQueueListener> retryQueueListeners = new HashSet<>();
 
   private RetryRequestInterceptor() {
   }
@@ -104,18 +165,81 @@ public class RetryRequestInterceptor implements Interceptor {
     if (storage == null) {
       throw new IllegalArgumentException("retryConfig.storage() can not return null");
     }
-    this.requestStorage = new GsonObjStorage<>(RequestWrapper.class, storage);
+    final Executor ioExecutor = retryConfig.ioExecutor();
+    if (ioExecutor == null) {
+      throw new IllegalArgumentException("retryConfig.ioExecutor() can not return null");
+    }
+    ObservableStorage observableStorage = new ObservableStorage(storage, ioExecutor);
+    if (retryConfig.retryWhenRequestSaved()) {
+      observableStorage.addStorageObserver(new ObservableStorage.StorageObserver() {
+        @Override
+        public void onStorageChanged(Map<String, Integer> changes) {
+          for (Map.Entry<String, Integer> change : changes.entrySet()) {
+            // only new requests wake the retry, failed attempts rewrite their existing record
+            if ((change.getValue() & ObservableStorage.CHANGE_CREATE) != 0
+                && change.getKey().startsWith(KEY_PREFIX_PENDING_REQUEST)) {
+              scheduleRetry(0);
+              return;
+            }
+          }
+        }
+      });
+    }
+    this.requestStorage = new GsonObjStorage<>(RequestWrapper.class, observableStorage);
+    MemoryPressureMonitor.register(appContext);
+    if (requestCache != null) {
+      MemoryPressureMonitor.removeListener(requestCache);
+      requestCache = null;
+    }
+    if (retryConfig.requestCacheSize() > 0 && retryConfig.requestCacheBytes() > 0) {
+      requestCache = new ObjCache<>(retryConfig.requestCacheSize(), retryConfig.requestCacheBytes());
+      requestStorage.setCache(requestCache);
+      MemoryPressureMonitor.addListener(requestCache);
+    }
+    this.asyncRequestStorage = new AsyncObjStorage<>(requestStorage, ioExecutor);
+    this.requestLeases = new LeaseTable(observableStorage, KEY_LEASE_JOURNAL);
+    this.queueManifest = new QueueManifest(observableStorage, KEY_QUEUE_MANIFEST);
+    Storage deadLetterStorage = retryConfig.deadLetterStorage(context);
+    if (deadLetterStorage != null) {
+      if (deadLetterStorage == storage) {
+        throw new IllegalArgumentException("retryConfig.deadLetterStorage() can not be the storage of retry queue");
+      }
+      deadLetters = new DeadLetterStore<>(new GsonObjStorage<>(RequestWrapper.class, deadLetterStorage),
+          retryConfig.maxDeadLetterCount(), retryConfig.deadLetterLife());
+    }
 
     okHttpClient = retryConfig.okHttpClient();
     if (okHttpClient == null) {
       throw new IllegalArgumentException("okHttpClient can not be null");
     }
+    failureClassifier = retryConfig.failureClassifier();
+    if (failureClassifier == null) {
+      throw new IllegalArgumentException("retryConfig.failureClassifier() can not return null");
+    }
+    if (retryConfig.hedgeIdempotentRequest()) {
+      requestHedger = new RequestHedger(retryConfig, okHttpClient, ExecutorFactory.newCachedExecutor("retry-hedge-"));
+    }
+    int maxConcurrency = retryConfig.maxRetryConcurrency();
+    if (maxConcurrency <= 0) {
+      throw new IllegalArgumentException("retryConfig.maxRetryConcurrency() must > 0");
+    }
+    sendLimiter = new ConcurrencyLimiter(1, maxConcurrency);
+    sendExecutor = ExecutorFactory.newExecutor(maxConcurrency, "retry-send-");
+    if (retryConfig.retryBudgetRatio() >= 0) {
+      retryBudget = new RetryBudget(retryConfig.retryBudgetRatio(), retryConfig.minRetriesPerSecond(),
+          retryConfig.retryBudgetWindow());
+    }
+    requestRateLimiter = newRateLimiter(retryConfig.maxRetryRequestsPerSecond());
+    byteRateLimiter = newRateLimiter(retryConfig.maxRetryBytesPerSecond());
 
     initFuture = new FutureTask<>(new Callable<Void>() {
       @Override
       public Void call() throws Exception {
+        queueManifest.load();
         recoverSendingRequest();
-        clearDirtyData();
+        recoverLeasedRequest();
+        validateQueueManifest();
+        scheduleSweep(queueManifest.getNextDeadline());
         return null;
       }
     });
@@ -161,6 +285,42 @@ public class RetryRequestInterceptor implements Interceptor {
     void onAbortRetry(Request request, long deadLine, int retryTimes);
   }
 
+  /**
+   * the listener to listen changes of retry queue
+   */
+  public interface RetryQueueListener {
+    /**
+     * the queue is over {@link RetryConfig#maxQueueSize()} or {@link RetryConfig#maxQueueBytes()}
+     */
+    int EVICT_REASON_CAPACITY = 1;
+    /**
+     * the request is older than {@link RetryConfig#maxQueueAge()}
+     */
+    int EVICT_REASON_AGE = 2;
+    /**
+     * the new request is rejected by {@link RetryConfig#evictionPolicy()}
+     */
+    int EVICT_REASON_REJECTED = 3;
+
+    /**
+     * callback for request removed from retry queue to keep the queue in limits
+     *
+     * @param request the evicted request
+     * @param reason  {@link #EVICT_REASON_CAPACITY}, {@link #EVICT_REASON_AGE} or {@link #EVICT_REASON_REJECTED}
+     */
+    void onEvicted(Request request, int reason);
+
+    /**
+     * callback for request removed from retry queue because {@link RetryConfig#failureClassifier()} classify its
+     * failure as {@link FailureClassifier#PERMANENT}, a first attempt failed permanently is not saved and not notified
+     *
+     * @param request   the request
+     * @param response  the response, null if failed with exception
+     * @param exception the exception, null if failed with response
+     */
+    void onPermanentFailure(Request request, Response response, IOException exception);
+  }
+
   public static abstract class RetryConfig {
 
     /**
@@ -210,6 +370,333 @@ public class RetryRequestInterceptor implements Interceptor {
       return new OkHttpClient();
     }
 
+    /**
+     * the storage to keep aborted and permanently failed requests for replay, must be separate from
+     * {@link #storage(Context)}, like a FileStorage of another directory, null means drop them
+     *
+     * @param context the context
+     * @return dead letter storage
+     */
+    protected Storage deadLetterStorage(Context context) {
+      return null;
+    }
+
+    /**
+     * the max count of requests kept in dead letter storage, the oldest are dropped when over it
+     *
+     * @return max count
+     */
+    protected int maxDeadLetterCount() {
+      return 100;
+    }
+
+    /**
+     * the requests in dead letter storage older than it are dropped, < 0 means never
+     *
+     * @return life in millis
+     */
+    protected long deadLetterLife() {
+      return 7 * 24 * 60 * 60 * 1000L;
+    }
+
+    /**
+     * the executor to run storage io, all disk work of RetryRequestInterceptor run on it, so the caller threads
+     * of {@link #intercept(Chain)} never wait for disk, you can override this method to share your io executor
+     *
+     * @return executor
+     */
+    protected Executor ioExecutor() {
+      return ExecutorFactory.newIoExecutor(2);
+    }
+
+    /**
+     * the max count of decoded requests cached in memory, so requests moved between retries are not decoded again,
+     * return 0 to disable the cache
+     *
+     * @return max count of cached requests
+     */
+    protected int requestCacheSize() {
+      return 64;
+    }
+
+    /**
+     * the max estimated byte size of decoded requests cached in memory, see {@link #requestCacheSize()}
+     *
+     * @return max byte size of cached requests
+     */
+    protected long requestCacheBytes() {
+      return 512 * 1024;
+    }
+
+    /**
+     * the max count of requests loaded in memory at once during retry, they are read ahead while the former
+     * requests are sending, quartered on memory pressure
+     *
+     * @return batch size
+     */
+    protected int drainBatchSize() {
+      return 16;
+    }
+
+    /**
+     * the max byte size of requests loaded in memory at once during retry, estimated by their stored size,
+     * a request larger than budget is still retried alone, quartered on memory pressure
+     *
+     * @return heap budget in bytes
+     */
+    protected long drainHeapBudget() {
+      return 1024 * 1024;
+    }
+
+    /**
+     * the max count of requests in flight at once during retry, the actual concurrency start from 1, grow while
+     * latency stays flat, and back off when latency rises or requests fail, 1 means send one by one
+     *
+     * @return max concurrency
+     */
+    protected int maxRetryConcurrency() {
+      return 4;
+    }
+
+    /**
+     * the count of retries in {@link RetryRequestInterceptor#intercept(Chain)} before a
+     * {@link FailureClassifier#RETRYABLE} request is saved, they are in memory with short backoff, so transient
+     * failures like a stale pooled connection don't cost disk, the caller thread is blocked meanwhile,
+     * 0 means save at once
+     *
+     * @return fast retry times
+     */
+    protected int fastRetryTimes() {
+      return 0;
+    }
+
+    /**
+     * the backoff before the first fast retry, doubled for each next, see {@link #fastRetryTimes()}
+     *
+     * @return backoff in millis
+     */
+    protected long fastRetryBackoff() {
+      return 100;
+    }
+
+    /**
+     * whether to hedge the idempotent requests in {@link RetryRequestInterceptor#intercept(Chain)}, if no response
+     * after the hedge delay, a copy of request is sent by {@link #okHttpClient()}, the first success is returned,
+     * the loser is stopped, the hedge call is canceled, the original is interrupted at its next io
+     *
+     * @return hedge or not
+     */
+    protected boolean hedgeIdempotentRequest() {
+      return false;
+    }
+
+    /**
+     * whether request is idempotent and can be hedged, by default GET, HEAD, OPTIONS, TRACE, PUT and DELETE
+     *
+     * @param request the request
+     * @return is idempotent
+     */
+    protected boolean isIdempotent(Request request) {
+      String method = request.method();
+      return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) || "TRACE".equals(method)
+          || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    /**
+     * the hedge delay is the latency percentile of recent hedgeable requests, like 0.95 for p95
+     *
+     * @return percentile in [0, 1]
+     */
+    protected double hedgeLatencyPercentile() {
+      return 0.95;
+    }
+
+    /**
+     * the min hedge delay, also used before enough latency is tracked
+     *
+     * @return delay in millis
+     */
+    protected long minHedgeDelay() {
+      return 100;
+    }
+
+    /**
+     * the max count of hedges per hedgeable request in a sliding window, caps the extra load of hedging
+     *
+     * @return hedge ratio, like 0.1 for one hedge per ten requests
+     */
+    protected double maxHedgeRatio() {
+      return 0.1;
+    }
+
+    /**
+     * the classifier to tell retryable, permanent and rate limited failures apart, permanent failures are not retried
+     *
+     * @return failure classifier
+     */
+    protected FailureClassifier failureClassifier() {
+      return new FailureClassifier();
+    }
+
+    /**
+     * the delay before retry a request which is {@link FailureClassifier#RATE_LIMITED} but no Retry-After header
+     *
+     * @return delay in millis
+     */
+    protected long defaultRetryAfter() {
+      return minRetryDuration();
+    }
+
+    /**
+     * the max delay accepted from Retry-After or rate limit headers, so a wrong header can't stop retry for long
+     *
+     * @return max delay in millis
+     */
+    protected long maxRetryAfter() {
+      return 60 * 60 * 1000;
+    }
+
+    /**
+     * the max count of retries per request passed {@link RetryRequestInterceptor#intercept(Chain)} in
+     * {@link #retryBudgetWindow()}, the retry stops when budget is exhausted and goes on after
+     * {@link #minRetryDuration()}, < 0 means no budget
+     *
+     * @return retry ratio, like 0.1 for one retry per ten requests
+     */
+    protected double retryBudgetRatio() {
+      return -1;
+    }
+
+    /**
+     * the retries allowed per second in addition to {@link #retryBudgetRatio()}, so requests are still retried
+     * when app is idle
+     *
+     * @return retries per second
+     */
+    protected double minRetriesPerSecond() {
+      return 1;
+    }
+
+    /**
+     * the sliding window of retry budget
+     *
+     * @return window in millis
+     */
+    protected long retryBudgetWindow() {
+      return 10 * 1000;
+    }
+
+    /**
+     * the max count of requests sent per second during retry, a burst of one second is allowed after idle,
+     * <= 0 means unlimited
+     *
+     * @return requests per second
+     */
+    protected double maxRetryRequestsPerSecond() {
+      return -1;
+    }
+
+    /**
+     * the max byte size of request bodies uploaded per second during retry, a request larger than it is still sent,
+     * and the following requests wait for the debt, <= 0 means unlimited
+     *
+     * @return bytes per second
+     */
+    protected long maxRetryBytesPerSecond() {
+      return -1;
+    }
+
+    /**
+     * the max count of requests sent to host per second during retry, applied in addition to
+     * {@link #maxRetryRequestsPerSecond()}, <= 0 means no limit for the host
+     *
+     * @param host the host of request
+     * @return requests per second
+     */
+    protected double maxRetryRequestsPerSecond(String host) {
+      return -1;
+    }
+
+    /**
+     * the max byte size of request bodies uploaded to host per second during retry, applied in addition to
+     * {@link #maxRetryBytesPerSecond()}, <= 0 means no limit for the host
+     *
+     * @param host the host of request
+     * @return bytes per second
+     */
+    protected long maxRetryBytesPerSecond(String host) {
+      return -1;
+    }
+
+    /**
+     * the retry start after a random delay in [0, jitter) when triggered, so devices triggered by the same event,
+     * like network recovery, don't retry at the same moment
+     *
+     * @return max jitter in millis
+     */
+    protected long retryStartJitter() {
+      return 0;
+    }
+
+    /**
+     * the max count of requests in retry queue, when a new request makes the queue over limit, requests are evicted
+     * by {@link #evictionPolicy()}, < 0 means unlimited
+     *
+     * @return max count of requests
+     */
+    protected int maxQueueSize() {
+      return -1;
+    }
+
+    /**
+     * the max total stored byte size of requests in retry queue, see {@link #maxQueueSize()}, < 0 means unlimited
+     *
+     * @return max byte size of queue
+     */
+    protected long maxQueueBytes() {
+      return -1;
+    }
+
+    /**
+     * requests queued longer than max age are evicted when a new request is saved, unlike {@link #life()},
+     * changing it also applies to requests already queued, < 0 means unlimited
+     *
+     * @return max age in millis
+     */
+    protected long maxQueueAge() {
+      return -1;
+    }
+
+    /**
+     * the policy to choose evicted requests when queue is over limit, like {@link EvictionPolicy#DROP_OLDEST},
+     * {@link EvictionPolicy#DROP_LARGEST}, {@link EvictionPolicy#DROP_LOWEST_PRIORITY}, {@link EvictionPolicy#REJECT_NEW}
+     *
+     * @return eviction policy
+     */
+    protected EvictionPolicy evictionPolicy() {
+      return EvictionPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * the priority of request, used by {@link EvictionPolicy#DROP_LOWEST_PRIORITY}
+     *
+     * @param request the request to save
+     * @return priority, higher is more important
+     */
+    protected int priority(Request request) {
+      return 0;
+    }
+
+    /**
+     * whether to retry soon after a failed request is saved, the retry still wait for {@link #minRetryDuration()}
+     * since last retry and network connected, so you don't have to call {@link #retryTrigger()} everywhere
+     *
+     * @return whether to retry when request saved
+     */
+    protected boolean retryWhenRequestSaved() {
+      return true;
+    }
+
     /**
      * the default method to judge whether should retry request, you can override this method to judge by your logic
      *
@@ -230,13 +717,57 @@ public class RetryRequestInterceptor implements Interceptor {
   public void retryTrigger() {
     if (System.currentTimeMillis() - preRetryTime > retryConfig.minRetryDuration()
         && NetworkUtil.isNetworkConnected(appContext)) {
-      threadPool.execute(new Runnable() {
+      threadPool.schedule(new Runnable() {
         @Override
         public void run() {
           preRetryTime = System.currentTimeMillis();
           tryRetryRequest();
         }
-      });
+      }, nextJitter(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * schedule a retry at time, but not earlier than {@link RetryConfig#minRetryDuration()} after last retry,
+   * if it's not scheduled earlier, requests saved before the scheduled retry start are coalesced into it
+   *
+   * @param time the time a request can be sent, 0 means now
+   */
+  private void scheduleRetry(long time) {
+    synchronized (threadPool) {
+      final long scheduleTime = Math.max(time, preRetryTime + retryConfig.minRetryDuration() + 1);
+      if (retryFuture != null && !retryFuture.isDone() && retryTime <= scheduleTime) {
+        return;
+      }
+      if (retryFuture != null) {
+        retryFuture.cancel(false);
+      }
+      retryTime = scheduleTime;
+      retryFuture = threadPool.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (threadPool) {
+            // the drain can schedule the next retry while it's running
+            if (retryTime == scheduleTime) {
+              retryFuture = null;
+            }
+          }
+          if (NetworkUtil.isNetworkConnected(appContext)) {
+            preRetryTime = System.currentTimeMillis();
+            tryRetryRequest();
+          }
+        }
+      }, Math.max(0, scheduleTime - System.currentTimeMillis()) + nextJitter(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private long nextJitter() {
+    long jitter = retryConfig.retryStartJitter();
+    if (jitter <= 0) {
+      return 0;
+    }
+    synchronized (jitterRandom) {
+      return (long) (jitterRandom.nextDouble() * jitter);
     }
   }
 
@@ -262,164 +793,939 @@ public class RetryRequestInterceptor implements Interceptor {
     }
   }
 
-  @Override
-  public Response intercept(Chain chain) throws IOException {
-    try {
-      initFuture.get();
-      Request request = chain.request();
-      if (!retryConfig.isRetryRequest(request)) {
-        return chain.proceed(request);
-      }
-      try {
-        Response response = chain.proceed(request);
-        if (!retryConfig.isSuccess(request, response)) {
-          saveToStorage(new RequestWrapper(request, retryConfig.life(), retryConfig.maxRetryTimes()));
-        }
-        return response;
-      } catch (IOException e) {
-        saveToStorage(new RequestWrapper(request, retryConfig.life(), retryConfig.maxRetryTimes()));
-        throw new IOException(e);
-      }
-    } catch (InterruptedException | ExecutionException e) {
-      e.printStackTrace();
-      return chain.proceed(chain.request());
+  /**
+   * add {@link RetryQueueListener} to RetryRequestInterceptor
+   *
+   * @param retryQueueListener the listener to add
+   */
+  public void addRetryQueueListener(RetryQueueListener retryQueueListener) {
+    synchronized (retryQueueListeners) {
+      retryQueueListeners.add(retryQueueListener);
     }
   }
 
-  private void saveToStorage(RequestWrapper requestWrapper) {
-    if (requestWrapper == null) {
-      return;
-    }
-    synchronized (requestStorage) {
-      requestStorage.put(requestWrapper.getMd5(), requestWrapper);
+  /**
+   * remove {@link RetryQueueListener} from RetryRequestInterceptor
+   *
+   * @param retryQueueListener the listener to remove
+   */
+  public void removeRetryQueueListener(RetryQueueListener retryQueueListener) {
+    synchronized (retryQueueListeners) {
+      retryQueueListeners.remove(retryQueueListener);
     }
   }
 
-  private void tryRetryRequest() {
-    List<RequestWrapper> requestWrappers = outRetryRequests();
-    if (CollectionUtils.isEmpty(requestWrappers)) {
-      return;
+  /**
+   * get the retry budget for monitoring
+   *
+   * @return the retry budget, null if {@link RetryConfig#retryBudgetRatio()} < 0
+   */
+  public RetryBudget getRetryBudget() {
+    return retryBudget;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    String retryPolicyHeader = request.header(RetryPolicy.HEADER_NAME);
+    if (retryPolicyHeader != null) {
+      request = request.newBuilder().removeHeader(RetryPolicy.HEADER_NAME).build();
+    }
+    if (retryBudget != null) {
+      retryBudget.recordRequest();
     }
-    for (RequestWrapper requestWrapper : requestWrappers) {
+    if (!retryConfig.isRetryRequest(request)) {
+      return chain.proceed(request);
+    }
+    RetryPolicy retryPolicy = getRetryPolicy(request, retryPolicyHeader);
+    // retryable failures are retried in memory a few times first, only the request still failed is saved
+    int fastRetryTimes = 0;
+    while (true) {
       Response response;
-      Request request = requestWrapper.toRequest();
       try {
-        response = executeRequest(request);
+        response = proceed(chain, request);
       } catch (IOException e) {
-        restoreSendingRequest(requestWrapper);
-        notifyRetryError(request, e);
-        continue;
+        int failure = failureClassifier.classify(request, e);
+        if (failure == FailureClassifier.RETRYABLE && canFastRetry(fastRetryTimes)) {
+          if (!waitFastRetry(fastRetryTimes++)) {
+            // interrupted while waiting, the caller gave up
+            throw new IOException(e);
+          }
+          continue;
+        }
+        if (failure != FailureClassifier.PERMANENT && failure != FailureClassifier.CANCELED) {
+          saveToStorage(newRequestWrapper(request, retryPolicy));
+        }
+        throw new IOException(e);
       }
       if (retryConfig.isSuccess(request, response)) {
-        finishSendRequest(requestWrapper);
-        notifyRetrySuccess(request, response);
+        return response;
+      }
+      int failure = failureClassifier.classify(request, response);
+      if (failure == FailureClassifier.RETRYABLE && canFastRetry(fastRetryTimes)) {
+        IOUtils.close(response.body());
+        if (!waitFastRetry(fastRetryTimes++)) {
+          throw new InterruptedIOException("interrupted before fast retry");
+        }
+        continue;
+      }
+      if (failure != FailureClassifier.PERMANENT) {
+        RequestWrapper requestWrapper = newRequestWrapper(request, retryPolicy);
+        deferByServerHint(requestWrapper, response, failure == FailureClassifier.RATE_LIMITED);
+        saveToStorage(requestWrapper);
+      }
+      return response;
+    }
+  }
+
+  private Response proceed(Chain chain, Request request) throws IOException {
+    if (requestHedger == null || !retryConfig.isIdempotent(request)) {
+      return chain.proceed(request);
+    }
+    return requestHedger.proceed(chain, request);
+  }
+
+  private boolean canFastRetry(int fastRetryTimes) {
+    return fastRetryTimes < retryConfig.fastRetryTimes()
+        && (retryBudget == null || retryBudget.tryAcquireRetry());
+  }
+
+  /**
+   * wait {@link RetryConfig#fastRetryBackoff()} doubled per fast retry, randomized in [half, full] of it,
+   * so the calls failed together don't retry together
+   *
+   * @return false if the thread is interrupted, the interrupt flag is kept
+   */
+  private boolean waitFastRetry(int fastRetryTimes) {
+    long backoff = retryConfig.fastRetryBackoff() << Math.min(fastRetryTimes, 16);
+    long delay;
+    synchronized (jitterRandom) {
+      delay = backoff / 2 + (long) (jitterRandom.nextDouble() * (backoff - backoff / 2));
+    }
+    if (delay <= 0) {
+      return !Thread.currentThread().isInterrupted();
+    }
+    try {
+      Thread.sleep(delay);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * the policy of request, from {@link Request#tag()} if it's a {@link RetryPolicy},
+   * or {@link RetryPolicy#HEADER_NAME}, the missing parts take {@link RetryConfig}
+   */
+  private RetryPolicy getRetryPolicy(Request request, String retryPolicyHeader) {
+    if (request.tag() instanceof RetryPolicy) {
+      return (RetryPolicy) request.tag();
+    }
+    RetryPolicy defaultPolicy = new RetryPolicy(retryConfig.life(), retryConfig.maxRetryTimes(), 0,
+        retryConfig.priority(request));
+    return RetryPolicy.parse(retryPolicyHeader, defaultPolicy);
+  }
+
+  private RequestWrapper newRequestWrapper(Request request, RetryPolicy retryPolicy) throws IOException {
+    RequestWrapper requestWrapper = new RequestWrapper(request, retryPolicy.getLife(),
+        retryPolicy.getMaxRetryTimes());
+    requestWrapper.priority = retryPolicy.getPriority();
+    requestWrapper.backoff = retryPolicy.getBackoff();
+    requestWrapper.applyBackoff();
+    return requestWrapper;
+  }
+
+  /**
+   * save request on io executor, the caller thread don't wait for disk
+   */
+  private void saveToStorage(final RequestWrapper requestWrapper) {
+    if (requestWrapper == null) {
+      return;
+    }
+    final String key = toPendingKey(requestWrapper.getMd5());
+    asyncRequestStorage.execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        // requests saved before init finished must not be touched by recovery
+        waitFor(initFuture);
+        if (requestStorage.put(key, requestWrapper)) {
+          indexRequest(key, requestWrapper);
+          enforceQueueLimits(key, requestWrapper);
+          return true;
+        }
+        return false;
+      }
+    }, null);
+  }
+
+  private static <V> V waitFor(Future<V> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  private void tryRetryRequest() {
+    // the queue is scheduled from manifest, records are not touched until they are sent
+    long now = System.currentTimeMillis();
+    Deque<QueueManifest.Entry> pendingEntries = new ArrayDeque<>();
+    boolean deferred = false;
+    List<QueueManifest.Entry> dueEntries = new ArrayList<>();
+    for (QueueManifest.Entry entry : queueManifest.getEntries()) {
+      if (entry.dueTime <= now) {
+        dueEntries.add(entry);
       } else {
-        restoreSendingRequest(requestWrapper);
-        notifyRetryFailed(request, response);
+        deferred = true;
+      }
+    }
+    // higher priority first, so the budget and rate limits are spent on valuable requests
+    Collections.sort(dueEntries, new Comparator<QueueManifest.Entry>() {
+      @Override
+      public int compare(QueueManifest.Entry lhs, QueueManifest.Entry rhs) {
+        return lhs.priority == rhs.priority ? 0 : (lhs.priority > rhs.priority ? -1 : 1);
+      }
+    });
+    pendingEntries.addAll(dueEntries);
+    // pipeline disk and network: the next requests are read on io executor while the current one is in flight,
+    // the read-ahead window is bounded, so memory stays flat however large the queue is
+    Deque<RequestClaim> claims = new ArrayDeque<>();
+    long claimedBytes = 0;
+    boolean budgetExhausted = false;
+    while (true) {
+      claimedBytes += readAhead(pendingEntries, claims, claimedBytes);
+      RequestClaim claim = claims.poll();
+      if (claim == null) {
+        break;
+      }
+      RequestWrapper requestWrapper = waitFor(claim.future);
+      if (requestWrapper != null && isHostDeferred(requestWrapper)) {
+        // the host asked to wait, other hosts go on
+        deferred = true;
+        releaseClaim(requestWrapper);
+      } else if (requestWrapper != null) {
+        if (budgetExhausted || (retryBudget != null && !retryBudget.tryAcquireRetry())) {
+          // stop claiming, give back the requests read ahead
+          budgetExhausted = true;
+          pendingEntries.clear();
+          releaseClaim(requestWrapper);
+        } else {
+          dispatchRetryRequest(requestWrapper);
+        }
       }
+      claimedBytes -= claim.size;
+    }
+    // wake when the first request held back can go, instead of polling
+    long nextRetryTime = -1;
+    if (deferred) {
+      nextRetryTime = earliest(queueManifest.getNextDueTime(now), getNextHostAttemptTime(now));
+    }
+    if (budgetExhausted) {
+      nextRetryTime = earliest(nextRetryTime, retryBudget.getNextSlotTime());
+    }
+    if (nextRetryTime > 0) {
+      scheduleRetry(nextRetryTime);
+    }
+    // the next drain starts after all requests of this drain finished
+    try {
+      sendLimiter.awaitIdle();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * wait for a free slot of {@link ConcurrencyLimiter} and the rate limits, then send the request on send executor,
+   * its latency and result adjust the concurrency
+   */
+  private void dispatchRetryRequest(final RequestWrapper requestWrapper) {
+    try {
+      sendLimiter.acquire();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      restoreSendingRequest(requestWrapper);
+      return;
+    }
+    throttle(requestWrapper);
+    // the lease must be journaled before the request leaves, the leases claimed together are written at once
+    requestLeases.flush();
+    sendExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+        try {
+          success = sendRetryRequest(requestWrapper);
+        } finally {
+          sendLimiter.release(System.currentTimeMillis() - startTime, success);
+        }
+      }
+    });
+  }
+
+  /**
+   * wait until the request is allowed by the global and host rate limits, the tokens of every limiter are taken
+   * at once, so the wait is the longest of them
+   */
+  private void throttle(RequestWrapper requestWrapper) {
+    long bodyLength = requestWrapper.body == null ? 0 : requestWrapper.body.length;
+    long delay = reserve(requestRateLimiter, 1);
+    delay = Math.max(delay, reserve(byteRateLimiter, bodyLength));
+    TokenBucket[] hostLimiters = getHostRateLimiters(getHost(requestWrapper));
+    if (hostLimiters != null) {
+      delay = Math.max(delay, reserve(hostLimiters[0], 1));
+      delay = Math.max(delay, reserve(hostLimiters[1], bodyLength));
+    }
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private TokenBucket[] getHostRateLimiters(String host) {
+    if (host == null) {
+      return null;
+    }
+    if (!hostRateLimiters.containsKey(host)) {
+      TokenBucket requestLimiter = newRateLimiter(retryConfig.maxRetryRequestsPerSecond(host));
+      TokenBucket byteLimiter = newRateLimiter(retryConfig.maxRetryBytesPerSecond(host));
+      hostRateLimiters.put(host, requestLimiter == null && byteLimiter == null ? null
+          : new TokenBucket[]{requestLimiter, byteLimiter});
     }
+    return hostRateLimiters.get(host);
+  }
+
+  private static TokenBucket newRateLimiter(double perSecond) {
+    return perSecond > 0 ? new TokenBucket(perSecond, Math.max(1, perSecond)) : null;
+  }
+
+  private static long reserve(TokenBucket rateLimiter, long count) {
+    return rateLimiter == null || count <= 0 ? 0 : rateLimiter.reserve(count);
+  }
+
+  /**
+   * @return false if the request failed and will be retried, a permanent failure is a fault of request,
+   * not a sign of congestion
+   */
+  private boolean sendRetryRequest(RequestWrapper requestWrapper) {
+    Response response;
+    Request request = requestWrapper.toRequest();
+    try {
+      response = executeRequest(request);
+    } catch (IOException e) {
+      int failure = failureClassifier.classify(request, e);
+      if (failure == FailureClassifier.CANCELED) {
+        // not a failure of request, the record is untouched
+        releaseClaim(requestWrapper);
+        notifyRetryError(request, e);
+        return false;
+      }
+      if (failure == FailureClassifier.PERMANENT) {
+        finishSendRequest(requestWrapper);
+        addDeadLetter(requestWrapper);
+        notifyRetryError(request, e);
+        notifyPermanentFailure(request, null, e);
+        return true;
+      }
+      restoreSendingRequest(requestWrapper);
+      notifyRetryError(request, e);
+      return false;
+    }
+    if (retryConfig.isSuccess(request, response)) {
+      finishSendRequest(requestWrapper);
+      notifyRetrySuccess(request, response);
+      return true;
+    }
+    int failure = failureClassifier.classify(request, response);
+    if (failure == FailureClassifier.PERMANENT) {
+      finishSendRequest(requestWrapper);
+      addDeadLetter(requestWrapper);
+      notifyRetryFailed(request, response);
+      notifyPermanentFailure(request, response, null);
+      return true;
+    }
+    deferByServerHint(requestWrapper, response, failure == FailureClassifier.RATE_LIMITED);
+    restoreSendingRequest(requestWrapper);
+    notifyRetryFailed(request, response);
+    return false;
+  }
+
+  /**
+   * push back the next attempt of request and its host by the delay hint of failed response,
+   * the dueTime is saved with the request
+   *
+   * @param rateLimited use {@link RetryConfig#defaultRetryAfter()} if response has no hint
+   */
+  private void deferByServerHint(RequestWrapper requestWrapper, Response response, boolean rateLimited) {
+    long now = System.currentTimeMillis();
+    long delay = RetryAfterUtils.parseRetryAfter(response.header("Retry-After"), now);
+    if (delay < 0 && isRateLimitExhausted(response)) {
+      delay = RetryAfterUtils.parseRateLimitReset(response.header("RateLimit-Reset"), now);
+      if (delay < 0) {
+        delay = RetryAfterUtils.parseRateLimitReset(response.header("X-RateLimit-Reset"), now);
+      }
+    }
+    if (delay < 0 && rateLimited) {
+      delay = retryConfig.defaultRetryAfter();
+    }
+    if (delay <= 0) {
+      return;
+    }
+    long nextAttemptTime = now + Math.min(delay, retryConfig.maxRetryAfter());
+    requestWrapper.dueTime = Math.max(requestWrapper.dueTime, nextAttemptTime);
+    String host = getHost(requestWrapper);
+    if (host != null) {
+      synchronized (hostNextAttemptTimes) {
+        Long hostNextAttemptTime = hostNextAttemptTimes.get(host);
+        if (hostNextAttemptTime == null || hostNextAttemptTime < nextAttemptTime) {
+          hostNextAttemptTimes.put(host, nextAttemptTime);
+        }
+      }
+    }
+  }
+
+  private static boolean isRateLimitExhausted(Response response) {
+    String remaining = response.header("RateLimit-Remaining");
+    if (remaining == null) {
+      remaining = response.header("X-RateLimit-Remaining");
+    }
+    return remaining != null && "0".equals(remaining.trim());
+  }
+
+  /**
+   * @return the earliest next attempt time of deferred hosts, -1 if no host is deferred
+   */
+  private long getNextHostAttemptTime(long now) {
+    long nextAttemptTime = -1;
+    for (Long hostNextAttemptTime : hostNextAttemptTimes.values()) {
+      if (hostNextAttemptTime > now) {
+        nextAttemptTime = earliest(nextAttemptTime, hostNextAttemptTime);
+      }
+    }
+    return nextAttemptTime;
+  }
+
+  /**
+   * @return the earlier of two times, a time <= 0 means none
+   */
+  private static long earliest(long time, long another) {
+    if (time <= 0) {
+      return another;
+    }
+    return another <= 0 ? time : Math.min(time, another);
+  }
+
+  private boolean isHostDeferred(RequestWrapper requestWrapper) {
+    String host = getHost(requestWrapper);
+    if (host == null) {
+      return false;
+    }
+    Long nextAttemptTime = hostNextAttemptTimes.get(host);
+    return nextAttemptTime != null && nextAttemptTime > System.currentTimeMillis();
+  }
+
+  private static String getHost(RequestWrapper requestWrapper) {
+    return Uri.parse(requestWrapper.url).getHost();
   }
 
   private Response executeRequest(Request request) throws IOException {
     return okHttpClient.newCall(request).execute();
   }
 
-  private List<RequestWrapper> outRetryRequests() {
-    List<RequestWrapper> requestWrappers = new ArrayList<>();
-    synchronized (requestStorage) {
-      Set<String> keyset = requestStorage.getKeys();
-      if (keyset.isEmpty()) {
-        return requestWrappers;
+  /**
+   * claim pendingKeys on io executor until the read-ahead window is full, the window is bounded by
+   * {@link RetryConfig#drainBatchSize()} and {@link RetryConfig#drainHeapBudget()}, and shrink on recent
+   * memory pressure
+   *
+   * @return the byte size of new claims
+   */
+  private long readAhead(Deque<QueueManifest.Entry> pendingEntries, Deque<RequestClaim> claims, long claimedBytes) {
+    int windowSize = retryConfig.drainBatchSize();
+    long heapBudget = retryConfig.drainHeapBudget();
+    int pressure = MemoryPressureMonitor.getRecentPressure(MEMORY_PRESSURE_WINDOW_MILLIS);
+    if (pressure == MemoryPressureMonitor.PRESSURE_CRITICAL) {
+      windowSize = 1;
+    } else if (pressure == MemoryPressureMonitor.PRESSURE_MODERATE) {
+      windowSize = windowSize / 4;
+      heapBudget = heapBudget / 4;
+    }
+
+    long bytes = 0;
+    while (!pendingEntries.isEmpty()) {
+      QueueManifest.Entry entry = pendingEntries.peek();
+      // the stored size approximate the resident size of request, known without decoding
+      long size = entry.size;
+      if (!claims.isEmpty() && (claims.size() >= windowSize || claimedBytes + bytes + size > heapBudget)) {
+        break;
       }
-      for (String key : keyset) {
-        if (isSendingRequest(key)) {
-          continue;
+      pendingEntries.poll();
+      bytes += size;
+      claims.add(new RequestClaim(claimRetryRequest(entry.key.substring(KEY_PREFIX_PENDING_REQUEST.length())),
+          size));
+    }
+    return bytes;
+  }
+
+  /**
+   * lease the request for sending, the record is not written until the attempt fails
+   */
+  private Future<RequestWrapper> claimRetryRequest(final String md5Key) {
+    final String pendingKey = toPendingKey(md5Key);
+    return asyncRequestStorage.execute(Collections.singleton(pendingKey), new Callable<RequestWrapper>() {
+      @Override
+      public RequestWrapper call() throws Exception {
+        long leaseToken = requestLeases.acquire(md5Key, REQUEST_LEASE_MILLIS);
+        if (leaseToken == 0) {
+          return null;
         }
-        RequestWrapper requestWrapper = requestStorage.getFirst(key);
-        if (deleteIfDirty(key, requestWrapper)) {
-          continue;
+        RequestWrapper requestWrapper = requestStorage.getFirst(pendingKey);
+        if (deleteIfDirty(md5Key, requestWrapper)) {
+          requestLeases.release(md5Key, leaseToken);
+          return null;
+        }
+        // the stored one may be shared by the cache, it must keep matching the record until the attempt fails
+        RequestWrapper claimed = requestWrapper.copy();
+        claimed.currentRetryTimes += 1;
+        claimed.leaseToken = leaseToken;
+        return claimed;
+      }
+    }, null);
+  }
+
+  /**
+   * the claimed request is not sent, the record is untouched, so only release the lease
+   */
+  private void releaseClaim(final RequestWrapper requestWrapper) {
+    final String md5Key = requestWrapper.getMd5();
+    asyncRequestStorage.execute(Collections.singleton(toPendingKey(md5Key)), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        releaseLease(md5Key, requestWrapper.leaseToken);
+        return true;
+      }
+    }, null);
+  }
+
+  private void finishSendRequest(final RequestWrapper requestWrapper) {
+    final String md5Key = requestWrapper.getMd5();
+    asyncRequestStorage.execute(Collections.singleton(toPendingKey(md5Key)), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        boolean result = requestStorage.delete(toPendingKey(md5Key));
+        queueManifest.remove(toPendingKey(md5Key));
+        requestLeases.release(md5Key, requestWrapper.leaseToken);
+        return result;
+      }
+    }, null);
+  }
+
+  /**
+   * the retry times changed, so write the record back
+   */
+  private void restoreSendingRequest(final RequestWrapper requestWrapper) {
+    final String md5Key = requestWrapper.getMd5();
+    asyncRequestStorage.execute(Collections.singleton(toPendingKey(md5Key)), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        if (requestWrapper.isDead()) {
+          // no retry left, remove it now instead of waiting for next retry
+          boolean result = disposeRequest(toPendingKey(md5Key));
+          requestLeases.release(md5Key, requestWrapper.leaseToken);
+          addDeadLetter(requestWrapper);
+          notifyRetryAbort(Collections.singletonList(requestWrapper));
+          return result;
+        }
+        requestWrapper.applyBackoff();
+        boolean result = requestStorage.put(toPendingKey(md5Key), requestWrapper);
+        if (result) {
+          indexRequest(toPendingKey(md5Key), requestWrapper);
+          if (requestWrapper.dueTime > System.currentTimeMillis()) {
+            // held back by backoff or server hint, the drain may have finished before it's restored
+            scheduleRetry(requestWrapper.dueTime);
+          }
+        }
+        releaseLease(md5Key, requestWrapper.leaseToken);
+        return result;
+      }
+    }, null);
+  }
+
+  /**
+   * the sweeper skips leased requests, so schedule it if the released one is expired meanwhile
+   */
+  private void releaseLease(String md5Key, long leaseToken) {
+    requestLeases.release(md5Key, leaseToken);
+    QueueManifest.Entry entry = queueManifest.get(toPendingKey(md5Key));
+    if (entry != null && entry.deadline >= 0) {
+      scheduleSweep(entry.deadline);
+    }
+  }
+
+  /**
+   * run in init, count the attempts in flight when last process died, so a request crash the process
+   * can't retry forever
+   */
+  private void recoverLeasedRequest() {
+    for (String md5Key : requestLeases.recover()) {
+      RequestWrapper requestWrapper = requestStorage.getFirst(toPendingKey(md5Key));
+      if (requestWrapper != null) {
+        requestWrapper = requestWrapper.copy();
+        requestWrapper.currentRetryTimes += 1;
+        if (requestStorage.put(toPendingKey(md5Key), requestWrapper)) {
+          indexRequest(toPendingKey(md5Key), requestWrapper);
         }
-        moveToSendingRequest(key, requestWrapper);
-        requestWrappers.add(requestWrapper);
       }
     }
-    return requestWrappers;
   }
 
-  private void moveToSendingRequest(String key, RequestWrapper requestWrapper) {
-    String sendingKey = key + KEY_SUFFIX_SENDING_QUEST;
-    requestWrapper.currentRetryTimes += 1;
-    synchronized (requestStorage) {
-      requestStorage.delete(key);
-      requestStorage.put(sendingKey, requestWrapper);
+  /**
+   * run in init, before any other storage operation, older versions move sending requests to the sending
+   * namespace, move them back
+   */
+  private void recoverSendingRequest() {
+    migrateLegacyKeys();
+    Iterator<String> sendingKeys = requestStorage.scanPrefix(KEY_PREFIX_SENDING_REQUEST);
+    while (sendingKeys.hasNext()) {
+      String sendingKey = sendingKeys.next();
+      requestStorage.rename(sendingKey, toPendingKey(sendingKey.substring(KEY_PREFIX_SENDING_REQUEST.length())));
+    }
+  }
+
+  /**
+   * older versions store requests with the bare md5 key, and ".sending" suffix for sending requests,
+   * move them to the pending namespace, md5 keys are lowercase hex, so they all sort before the namespaces
+   */
+  private void migrateLegacyKeys() {
+    Iterator<String> legacyKeys = requestStorage.scanRange(null, KEY_PREFIX_PENDING_REQUEST);
+    while (legacyKeys.hasNext()) {
+      String legacyKey = legacyKeys.next();
+      String md5Key = legacyKey;
+      if (legacyKey.endsWith(LEGACY_KEY_SUFFIX_SENDING_QUEST)) {
+        md5Key = legacyKey.substring(0, legacyKey.length() - LEGACY_KEY_SUFFIX_SENDING_QUEST.length());
+      }
+      requestStorage.rename(legacyKey, toPendingKey(md5Key));
     }
   }
 
-  private void finishSendRequest(RequestWrapper requestWrapper) {
-    String sendingKey = requestWrapper.getMd5() + KEY_SUFFIX_SENDING_QUEST;
-    synchronized (requestStorage) {
-      requestStorage.delete(sendingKey);
+  /**
+   * run in init, a record matching its manifest entry by stored size is trusted without reading, so cold start
+   * only cost a directory listing, other records are verified and indexed, and torn records are quarantined,
+   * the trusted records are still verified when they are decoded for sending
+   */
+  private void validateQueueManifest() {
+    Set<String> staleKeys = new HashSet<>();
+    for (QueueManifest.Entry entry : queueManifest.getEntries()) {
+      staleKeys.add(entry.key);
+    }
+    Iterator<String> pendingKeys = requestStorage.scanPrefix(KEY_PREFIX_PENDING_REQUEST);
+    while (pendingKeys.hasNext()) {
+      String pendingKey = pendingKeys.next();
+      staleKeys.remove(pendingKey);
+      QueueManifest.Entry entry = queueManifest.get(pendingKey);
+      if (entry != null && entry.size == requestStorage.size(pendingKey)) {
+        continue;
+      }
+      RequestWrapper requestWrapper = null;
+      if (requestStorage.check(pendingKey)) {
+        requestWrapper = requestStorage.getFirst(pendingKey);
+      } else {
+        requestStorage.quarantine(pendingKey);
+      }
+      if (requestWrapper != null) {
+        indexRequest(pendingKey, requestWrapper);
+      } else {
+        queueManifest.remove(pendingKey);
+      }
+    }
+    for (String staleKey : staleKeys) {
+      queueManifest.remove(staleKey);
     }
+    queueManifest.compact();
   }
 
-  private void restoreSendingRequest(RequestWrapper requestWrapper) {
-    String md5Key = requestWrapper.getMd5();
-    String sendingKey = md5Key + KEY_SUFFIX_SENDING_QUEST;
-    synchronized (requestStorage) {
-      requestStorage.rename(sendingKey, md5Key);
+  private void indexRequest(String pendingKey, RequestWrapper requestWrapper) {
+    queueManifest.put(new QueueManifest.Entry(pendingKey, requestWrapper.deadLine, requestWrapper.currentRetryTimes,
+        requestWrapper.maxRetryTimes, requestWrapper.dueTime, requestStorage.size(pendingKey),
+        requestWrapper.createTime, requestWrapper.priority));
+    if (requestWrapper.deadLine >= 0) {
+      scheduleSweep(requestWrapper.deadLine);
     }
   }
 
-  private void recoverSendingRequest() {
-    synchronized (requestStorage) {
-      Set<String> keySet = requestStorage.getKeys();
-      if (keySet.isEmpty()) {
-        return;
+  /**
+   * run in the save task of newKey, evict requests over the limits of {@link RetryConfig}, the requests in flight
+   * are not evicted, the queue size is tracked by manifest, so no storage is touched if the queue is in limits
+   */
+  private void enforceQueueLimits(String newKey, RequestWrapper newRequest) {
+    long now = System.currentTimeMillis();
+    long maxAge = retryConfig.maxQueueAge();
+    List<QueueManifest.Entry> queued = new ArrayList<>();
+    for (QueueManifest.Entry entry : queueManifest.getEntries()) {
+      if (entry.key.equals(newKey) || requestLeases.isLeased(entry.key.substring(KEY_PREFIX_PENDING_REQUEST.length()))) {
+        continue;
       }
-      for (String key : keySet) {
-        if (key.endsWith(KEY_SUFFIX_SENDING_QUEST)) {
-          requestStorage.put(convertSendingKeyToMd5Key(key),
-              requestStorage.getFirst(key));
-          requestStorage.delete(key);
-        }
+      if (maxAge >= 0 && entry.createTime > 0 && now - entry.createTime > maxAge) {
+        evictRequest(entry.key, RetryQueueListener.EVICT_REASON_AGE);
+      } else {
+        queued.add(entry);
       }
     }
+
+    int maxSize = retryConfig.maxQueueSize();
+    long maxBytes = retryConfig.maxQueueBytes();
+    int overCount = maxSize >= 0 ? queueManifest.size() - maxSize : 0;
+    long overBytes = maxBytes >= 0 ? queueManifest.getTotalBytes() - maxBytes : 0;
+    QueueManifest.Entry incoming = queueManifest.get(newKey);
+    if ((overCount <= 0 && overBytes <= 0) || incoming == null) {
+      return;
+    }
+    EvictionPolicy evictionPolicy = retryConfig.evictionPolicy();
+    List<QueueManifest.Entry> evictions = evictionPolicy == null ? null
+        : evictionPolicy.selectEvictions(queued, incoming, Math.max(0, overCount), Math.max(0, overBytes));
+    if (evictions == null) {
+      disposeRequest(newKey);
+      notifyRequestEvicted(newRequest.toRequest(), RetryQueueListener.EVICT_REASON_REJECTED);
+      return;
+    }
+    for (QueueManifest.Entry eviction : evictions) {
+      evictRequest(eviction.key, RetryQueueListener.EVICT_REASON_CAPACITY);
+    }
   }
 
-  private void clearDirtyData() {
-    synchronized (requestStorage) {
-      Set<String> md5KeySet = requestStorage.getKeys();
-      if (md5KeySet.isEmpty()) {
+  /**
+   * remove the request from manifest at once, so the queue size is right for next save, and delete it in its own
+   * key order
+   */
+  private void evictRequest(final String pendingKey, final int reason) {
+    queueManifest.remove(pendingKey);
+    asyncRequestStorage.execute(Collections.singleton(pendingKey), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        if (requestLeases.isLeased(pendingKey.substring(KEY_PREFIX_PENDING_REQUEST.length()))) {
+          // picked for sending meanwhile, the attempt decide its fate
+          return false;
+        }
+        RequestWrapper requestWrapper = requestStorage.getFirst(pendingKey);
+        boolean result = requestStorage.delete(pendingKey);
+        if (requestWrapper != null) {
+          notifyRequestEvicted(requestWrapper.toRequest(), reason);
+        }
+        return result;
+      }
+    }, null);
+  }
+
+  private boolean disposeRequest(String pendingKey) {
+    boolean result = requestStorage.delete(pendingKey);
+    queueManifest.remove(pendingKey);
+    return result;
+  }
+
+  /**
+   * schedule the sweeper to run after deadline, if it's not scheduled earlier
+   *
+   * @param deadline the deadline, < 0 means no deadline
+   */
+  private void scheduleSweep(long deadline) {
+    if (deadline < 0) {
+      return;
+    }
+    synchronized (queueManifest) {
+      // a request is dead when deadline < now, so sweep after deadline
+      long time = deadline + 1;
+      if (sweepFuture != null && !sweepFuture.isDone() && sweepTime <= time) {
         return;
       }
-      for (String key : md5KeySet) {
-        RequestWrapper requestWrapper = requestStorage.getFirst(key);
-        deleteIfDirty(key, requestWrapper);
+      if (sweepFuture != null) {
+        sweepFuture.cancel(false);
       }
+      sweepTime = time;
+      sweepFuture = ExecutorFactory.getLowPriorityExecutor().schedule(new Runnable() {
+        @Override
+        public void run() {
+          sweepSlice();
+        }
+      }, Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
     }
   }
 
-  private boolean isSendingRequest(String key) {
-    return key != null && key.endsWith(KEY_SUFFIX_SENDING_QUEST);
+  /**
+   * remove expired requests in deadline order for at most {@link #SWEEP_SLICE_MILLIS}, then yield to other work,
+   * the aborted requests of one slice are notified together.
+   * <p/>
+   * the leased requests are in flight, they are skipped, so they can't hide the expired requests behind them,
+   * and they don't make the sweeper poll: the sweep is scheduled again when their lease is released,
+   * see {@link #releaseLease(String, long)}, or when the lease expires if the attempt never ends
+   */
+  private void sweepSlice() {
+    waitFor(initFuture);
+    long startTime = System.currentTimeMillis();
+    List<RequestWrapper> abortedRequests = new ArrayList<>();
+    List<QueueManifest.Entry> expiredEntries = queueManifest.getExpiredEntries(startTime, SWEEP_BATCH_SIZE,
+        new QueueManifest.EntryFilter() {
+          @Override
+          public boolean accept(QueueManifest.Entry entry) {
+            return !requestLeases.isLeased(entry.key.substring(KEY_PREFIX_PENDING_REQUEST.length()));
+          }
+        });
+    boolean sliceFull = expiredEntries.size() >= SWEEP_BATCH_SIZE;
+    for (QueueManifest.Entry entry : expiredEntries) {
+      if (System.currentTimeMillis() - startTime > SWEEP_SLICE_MILLIS) {
+        sliceFull = true;
+        break;
+      }
+      RequestWrapper requestWrapper = waitFor(sweepRequest(entry.key));
+      if (requestWrapper != null) {
+        abortedRequests.add(requestWrapper);
+        addDeadLetter(requestWrapper);
+      }
+    }
+    notifyRetryAbort(abortedRequests);
+
+    synchronized (queueManifest) {
+      sweepFuture = null;
+    }
+    long now = System.currentTimeMillis();
+    if (sliceFull) {
+      // more expired requests may be left
+      scheduleSweep(now + SWEEP_INTERVAL_MILLIS);
+      return;
+    }
+    long nextDeadline = queueManifest.getNextDeadline(now);
+    long firstDeadline = queueManifest.getNextDeadline();
+    if (firstDeadline >= 0 && firstDeadline < now) {
+      // only leased requests are expired, check them again when their lease must be expired
+      long leaseDeadline = now + REQUEST_LEASE_MILLIS;
+      nextDeadline = nextDeadline < 0 ? leaseDeadline : Math.min(nextDeadline, leaseDeadline);
+    }
+    if (nextDeadline >= 0) {
+      scheduleSweep(Math.max(nextDeadline, now + SWEEP_INTERVAL_MILLIS));
+    }
   }
 
-  private boolean isDirtyData(String key, RequestWrapper requestWrapper) {
-    if (requestWrapper == null || requestWrapper.isDead()) {
-      return true;
+  private Future<RequestWrapper> sweepRequest(final String pendingKey) {
+    return asyncRequestStorage.execute(Collections.singleton(pendingKey), new Callable<RequestWrapper>() {
+      @Override
+      public RequestWrapper call() throws Exception {
+        String md5Key = pendingKey.substring(KEY_PREFIX_PENDING_REQUEST.length());
+        if (requestLeases.isLeased(md5Key)) {
+          // in flight, it's removed when the attempt finished
+          return null;
+        }
+        RequestWrapper requestWrapper = requestStorage.getFirst(pendingKey);
+        if (requestWrapper != null && !requestWrapper.isDead()) {
+          // the manifest is outdated, the record is authoritative
+          indexRequest(pendingKey, requestWrapper);
+          return null;
+        }
+        disposeRequest(pendingKey);
+        return requestWrapper;
+      }
+    }, null);
+  }
+
+  /**
+   * keep the given up request in dead letter storage, on the low priority executor, so the drain never wait for it
+   */
+  private void addDeadLetter(final RequestWrapper requestWrapper) {
+    if (deadLetters == null) {
+      return;
     }
-    String md5Key;
-    if (isSendingRequest(key)) {
-      md5Key = convertSendingKeyToMd5Key(key);
-    } else {
-      md5Key = key;
+    ExecutorFactory.getLowPriorityExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        deadLetters.add(requestWrapper.getMd5(), requestWrapper);
+      }
+    });
+  }
+
+  private DeadLetterStore<RequestWrapper> checkDeadLetters() {
+    if (deadLetters == null) {
+      throw new IllegalStateException("dead letter is disabled, see RetryConfig.deadLetterStorage()");
     }
-    return !requestWrapper.getMd5().equals(md5Key);
+    return deadLetters;
   }
 
-  private boolean deleteIfDirty(String key, RequestWrapper requestWrapper) {
-    if (isDirtyData(key, requestWrapper)) {
-      requestStorage.delete(key);
+  /**
+   * get the requests in dead letter storage, oldest first, the storage is read on caller thread
+   *
+   * @return requests
+   */
+  public List<Request> getDeadLetters() {
+    DeadLetterStore<RequestWrapper> deadLetters = checkDeadLetters();
+    List<Request> requests = new ArrayList<>();
+    for (String key : deadLetters.getKeys()) {
+      RequestWrapper requestWrapper = deadLetters.get(key);
       if (requestWrapper != null) {
+        requests.add(requestWrapper.toRequest());
+      }
+    }
+    return requests;
+  }
+
+  /**
+   * move all requests in dead letter storage back to retry queue, they start with a new life and retry times of
+   * their own retry policy, like after the backend fixed the cause
+   *
+   * @return the future of the count of replayed requests
+   */
+  public Future<Integer> replayDeadLetters() {
+    final DeadLetterStore<RequestWrapper> deadLetters = checkDeadLetters();
+    FutureTask<Integer> future = new FutureTask<>(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        int count = 0;
+        for (String key : deadLetters.getKeys()) {
+          RequestWrapper requestWrapper = deadLetters.get(key);
+          if (requestWrapper != null) {
+            requestWrapper.renew();
+            saveToStorage(requestWrapper);
+            count++;
+          }
+          deadLetters.remove(key);
+        }
+        return count;
+      }
+    });
+    ExecutorFactory.getLowPriorityExecutor().execute(future);
+    return future;
+  }
+
+  /**
+   * remove all requests in dead letter storage
+   *
+   * @return the future of the count of removed requests
+   */
+  public Future<Integer> purgeDeadLetters() {
+    final DeadLetterStore<RequestWrapper> deadLetters = checkDeadLetters();
+    FutureTask<Integer> future = new FutureTask<>(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return deadLetters.purge();
+      }
+    });
+    ExecutorFactory.getLowPriorityExecutor().execute(future);
+    return future;
+  }
+
+  private static String toPendingKey(String md5Key) {
+    return KEY_PREFIX_PENDING_REQUEST + md5Key;
+  }
+
+  private boolean isDirtyData(String md5Key, RequestWrapper requestWrapper) {
+    return requestWrapper == null || requestWrapper.isDead() || !requestWrapper.getMd5().equals(md5Key);
+  }
+
+  private boolean deleteIfDirty(String md5Key, RequestWrapper requestWrapper) {
+    if (isDirtyData(md5Key, requestWrapper)) {
+      disposeRequest(toPendingKey(md5Key));
+      if (requestWrapper != null) {
+        addDeadLetter(requestWrapper);
         notifyRetryAbort(requestWrapper.toRequest(), requestWrapper.deadLine, requestWrapper.currentRetryTimes - 1);
       }
       return true;
@@ -427,10 +1733,6 @@ public class RetryRequestInterceptor implements Interceptor {
     return false;
   }
 
-  private String convertSendingKeyToMd5Key(String sendingKey) {
-    return sendingKey.substring(0, sendingKey.length() - KEY_SUFFIX_SENDING_QUEST.length());
-  }
-
   private void notifyRetryListener(ListenerRunnable runnable) {
     if (retryResultListeners.isEmpty()) {
       return;
@@ -477,6 +1779,79 @@ public class RetryRequestInterceptor implements Interceptor {
     });
   }
 
+  private void notifyRequestEvicted(final Request request, final int reason) {
+    List<RetryQueueListener> listeners;
+    synchronized (retryQueueListeners) {
+      if (retryQueueListeners.isEmpty()) {
+        return;
+      }
+      listeners = new ArrayList<>(retryQueueListeners);
+    }
+    for (final RetryQueueListener retryQueueListener : listeners) {
+      MainThreadPostUtils.post(new Runnable() {
+        @Override
+        public void run() {
+          retryQueueListener.onEvicted(request, reason);
+        }
+      });
+    }
+  }
+
+  private void notifyPermanentFailure(final Request request, final Response response, final IOException exception) {
+    List<RetryQueueListener> listeners;
+    synchronized (retryQueueListeners) {
+      if (retryQueueListeners.isEmpty()) {
+        return;
+      }
+      listeners = new ArrayList<>(retryQueueListeners);
+    }
+    for (final RetryQueueListener retryQueueListener : listeners) {
+      MainThreadPostUtils.post(new Runnable() {
+        @Override
+        public void run() {
+          retryQueueListener.onPermanentFailure(request, response, exception);
+        }
+      });
+    }
+  }
+
+  /**
+   * notify a batch of aborted requests in one post to main thread
+   */
+  private void notifyRetryAbort(List<RequestWrapper> requestWrappers) {
+    if (requestWrappers.isEmpty() || retryResultListeners.isEmpty()) {
+      return;
+    }
+    final int count = requestWrappers.size();
+    final Request[] requests = new Request[count];
+    final long[] deadLines = new long[count];
+    final int[] retryTimes = new int[count];
+    for (int i = 0; i < count; i++) {
+      RequestWrapper requestWrapper = requestWrappers.get(i);
+      requests[i] = requestWrapper.toRequest();
+      deadLines[i] = requestWrapper.deadLine;
+      retryTimes[i] = requestWrapper.currentRetryTimes - 1;
+    }
+    notifyRetryListener(new ListenerRunnable() {
+      @Override
+      void doNotify(RetryResultListener retryResultListener) {
+        for (int i = 0; i < count; i++) {
+          retryResultListener.onAbortRetry(requests[i], deadLines[i], retryTimes[i]);
+        }
+      }
+    });
+  }
+
+  private static class RequestClaim {
+    private final Future<RequestWrapper> future;
+    private final long size;
+
+    RequestClaim(Future<RequestWrapper> future, long size) {
+      this.future = future;
+      this.size = size;
+    }
+  }
+
   private static class RequestWrapper implements Serializable {
     private String url;
     private String method;
@@ -486,6 +1861,14 @@ public class RetryRequestInterceptor implements Interceptor {
     private long deadLine;
     private int currentRetryTimes;
     private int maxRetryTimes;
+    // the request is not retried before dueTime, 0 means any time
+    private long dueTime;
+    private long createTime;
+    private int priority;
+    // the base delay before next attempt, doubled per retry, 0 means none
+    private long backoff;
+    // the lease of the attempt in flight, not stored
+    private transient long leaseToken;
 
     public RequestWrapper(Request request, long life, int maxRetryTimes) throws IOException {
       url = request.url().toString();
@@ -505,6 +1888,49 @@ public class RetryRequestInterceptor implements Interceptor {
         deadLine = System.currentTimeMillis() + life;
       }
       this.maxRetryTimes = maxRetryTimes;
+      this.createTime = System.currentTimeMillis();
+    }
+
+    private RequestWrapper(RequestWrapper other) {
+      url = other.url;
+      method = other.method;
+      headers = other.headers;
+      mediaType = other.mediaType;
+      body = other.body;
+      deadLine = other.deadLine;
+      currentRetryTimes = other.currentRetryTimes;
+      maxRetryTimes = other.maxRetryTimes;
+      dueTime = other.dueTime;
+      createTime = other.createTime;
+      priority = other.priority;
+      backoff = other.backoff;
+    }
+
+    /**
+     * a copy to change, the request content is shared
+     */
+    public RequestWrapper copy() {
+      return new RequestWrapper(this);
+    }
+
+    /**
+     * push back dueTime by the backoff of current retry times
+     */
+    public void applyBackoff() {
+      if (backoff > 0) {
+        dueTime = Math.max(dueTime, System.currentTimeMillis() + (backoff << Math.min(currentRetryTimes, 16)));
+      }
+    }
+
+    /**
+     * start a new life of the same length, like the request is just saved, maxRetryTimes is kept
+     */
+    public void renew() {
+      long now = System.currentTimeMillis();
+      deadLine = deadLine < 0 ? -1 : now + (deadLine - createTime);
+      currentRetryTimes = 0;
+      dueTime = 0;
+      createTime = now;
     }
 
     public Request toRequest() {
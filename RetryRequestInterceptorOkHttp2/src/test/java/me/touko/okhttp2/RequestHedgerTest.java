@@ -0,0 +1,194 @@
+package me.touko.okhttp2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import static org.junit.Assert.*;
+
+public class RequestHedgerTest {
+  private ServerSocket serverSocket;
+  private ExecutorService executor;
+  private final AtomicInteger serverHits = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    executor = Executors.newCachedThreadPool();
+    // answer the headers at once and the body later, a canceled call can't read the body
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Socket socket = serverSocket.accept();
+            serverHits.incrementAndGet();
+            readHeaders(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\n".getBytes("utf-8"));
+            out.flush();
+            Thread.sleep(300);
+            out.write("hedge".getBytes("utf-8"));
+            out.flush();
+            socket.close();
+          }
+        } catch (Exception ignored) {
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    serverSocket.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void hedgeWins_bodyReadable_originalInterrupted() throws Exception {
+    CountDownLatch interrupted = new CountDownLatch(1);
+    RequestHedger hedger = new RequestHedger(new TestConfig(), new OkHttpClient(), executor);
+
+    Response response = hedger.proceed(new BlockingChain(interrupted), newRequest());
+
+    assertEquals("hedge", response.body().string());
+    assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    assertEquals(1, serverHits.get());
+  }
+
+  @Test
+  public void originalWins_noHedgeSent() throws Exception {
+    RequestHedger hedger = new RequestHedger(new TestConfig(), new OkHttpClient(), executor);
+    final Request request = newRequest();
+
+    Response response = hedger.proceed(new FixedChain(request, 200), request);
+
+    assertEquals("original", response.body().string());
+    assertEquals(0, serverHits.get());
+  }
+
+  private Request newRequest() {
+    return new Request.Builder().url("http://127.0.0.1:" + serverSocket.getLocalPort() + "/").build();
+  }
+
+  private static void readHeaders(InputStream in) throws IOException {
+    int matched = 0;
+    int b;
+    while (matched < 4 && (b = in.read()) != -1) {
+      matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+    }
+  }
+
+  private static class TestConfig extends RetryRequestInterceptor.RetryConfig {
+    @Override
+    public long minRetryDuration() {
+      return 0;
+    }
+
+    @Override
+    public long life() {
+      return 0;
+    }
+
+    @Override
+    public int maxRetryTimes() {
+      return 0;
+    }
+
+    @Override
+    public boolean isRetryRequest(Request request) {
+      return false;
+    }
+
+    @Override
+    protected long minHedgeDelay() {
+      return 50;
+    }
+
+    @Override
+    protected double maxHedgeRatio() {
+      return 1;
+    }
+  }
+
+  private static class BlockingChain implements Interceptor.Chain {
+    private final CountDownLatch interrupted;
+
+    BlockingChain(CountDownLatch interrupted) {
+      this.interrupted = interrupted;
+    }
+
+    @Override
+    public Request request() {
+      return null;
+    }
+
+    @Override
+    public Response proceed(Request request) throws IOException {
+      try {
+        new CountDownLatch(1).await();
+        throw new IOException("unreachable");
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw new InterruptedIOException();
+      }
+    }
+
+    @Override
+    public Connection connection() {
+      return null;
+    }
+  }
+
+  private static class FixedChain implements Interceptor.Chain {
+    private final Request request;
+    private final int code;
+
+    FixedChain(Request request, int code) {
+      this.request = request;
+      this.code = code;
+    }
+
+    @Override
+    public Request request() {
+      return request;
+    }
+
+    @Override
+    public Response proceed(Request request) throws IOException {
+      return new Response.Builder()
+          .request(request)
+          .protocol(Protocol.HTTP_1_1)
+          .code(code)
+          .body(ResponseBody.create(MediaType.parse("text/plain"), "original"))
+          .build();
+    }
+
+    @Override
+    public Connection connection() {
+      return null;
+    }
+  }
+}
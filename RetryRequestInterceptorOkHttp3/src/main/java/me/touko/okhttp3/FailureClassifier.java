@@ -0,0 +1,107 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.okhttp3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.UnknownServiceException;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * classify the failed attempts of request, a permanent failure is removed from retry queue at once,
+ * see {@link RetryRequestInterceptor.RetryConfig#failureClassifier()}
+ */
+public class FailureClassifier {
+  /**
+   * the request may succeed later, retry it
+   */
+  public static final int RETRYABLE = 0;
+  /**
+   * the request will never succeed, like a malformed request, stop retry
+   */
+  public static final int PERMANENT = 1;
+  /**
+   * the server is overloaded or the client is over quota, retry it after the delay server asked
+   */
+  public static final int RATE_LIMITED = 2;
+  /**
+   * the call is canceled or the calling thread is interrupted, the caller gave up, neither retry nor save it
+   */
+  public static final int CANCELED = 3;
+
+  /**
+   * classify a response not success, by default 429 and 503 are rate limited, 4xx other than 401, 408 and 425,
+   * and 501, 505 are permanent, others are retryable
+   *
+   * @param request  the request
+   * @param response the response
+   * @return {@link #RETRYABLE}, {@link #PERMANENT} or {@link #RATE_LIMITED}
+   */
+  public int classify(Request request, Response response) {
+    int code = response.code();
+    switch (code) {
+      case 429:
+      case 503:
+        return RATE_LIMITED;
+      case 401: // credentials may be refreshed by the authenticator of okHttpClient
+      case 408:
+      case 425:
+        return RETRYABLE;
+      case 501:
+      case 505:
+        return PERMANENT;
+      default:
+        return code >= 400 && code < 500 ? PERMANENT : RETRYABLE;
+    }
+  }
+
+  /**
+   * classify a failed attempt with exception, by default a canceled call or an interrupted thread is canceled,
+   * the failures of request itself or the certificate pinning are permanent, others like timeout and network
+   * unreachable are retryable
+   *
+   * @param request   the request
+   * @param exception the exception
+   * @return {@link #RETRYABLE}, {@link #PERMANENT}, {@link #RATE_LIMITED} or {@link #CANCELED}
+   */
+  public int classify(Request request, IOException exception) {
+    if (isCanceled(exception)) {
+      return CANCELED;
+    }
+    if (exception instanceof MalformedURLException
+        || exception instanceof UnknownServiceException
+        || exception instanceof SSLPeerUnverifiedException) {
+      return PERMANENT;
+    }
+    return RETRYABLE;
+  }
+
+  /**
+   * okhttp throws IOException("Canceled") for a canceled call, and okio throws
+   * InterruptedIOException("thread interrupted") after clearing the interrupt flag
+   */
+  private static boolean isCanceled(IOException exception) {
+    if (Thread.currentThread().isInterrupted() || "Canceled".equals(exception.getMessage())) {
+      return true;
+    }
+    return exception instanceof InterruptedIOException && "thread interrupted".equals(exception.getMessage());
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.okhttp3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.touko.core.retry.LatencyTracker;
+import me.touko.core.retry.RetryBudget;
+import me.touko.core.utils.IOUtils;
+import okhttp3.Call;
+import okhttp3.Interceptor.Chain;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * hedge the slow requests, see {@link RetryRequestInterceptor.RetryConfig#hedgeIdempotentRequest()}
+ */
+class RequestHedger {
+  private static final int LATENCY_SAMPLE_COUNT = 256;
+  private static final int LATENCY_MIN_SAMPLE_COUNT = 20;
+  private static final long HEDGE_BUDGET_WINDOW_MILLIS = 10 * 1000;
+
+  private final RetryRequestInterceptor.RetryConfig retryConfig;
+  private final OkHttpClient okHttpClient;
+  private final ExecutorService executor;
+  private final LatencyTracker latencyTracker;
+  private final RetryBudget hedgeBudget;
+
+  RequestHedger(RetryRequestInterceptor.RetryConfig retryConfig, OkHttpClient okHttpClient,
+                ExecutorService executor) {
+    this.retryConfig = retryConfig;
+    this.okHttpClient = okHttpClient;
+    this.executor = executor;
+    latencyTracker = new LatencyTracker(LATENCY_SAMPLE_COUNT, LATENCY_MIN_SAMPLE_COUNT);
+    hedgeBudget = new RetryBudget(retryConfig.maxHedgeRatio(), 0, HEDGE_BUDGET_WINDOW_MILLIS);
+  }
+
+  /**
+   * the original request is sent on executor, the caller wait for the first success of it and the hedge,
+   * if both failed, the later failure is returned. the loser is stopped: the hedge call is canceled,
+   * the original is interrupted at its next io, its response is closed if it still arrives
+   */
+  Response proceed(final Chain chain, final Request request) throws IOException {
+    long startTime = System.currentTimeMillis();
+    hedgeBudget.recordRequest();
+    final BlockingQueue<Attempt> attempts = new LinkedBlockingQueue<>();
+    final AtomicBoolean settled = new AtomicBoolean();
+    Future<?> original = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        Attempt attempt;
+        try {
+          attempt = new Attempt(false, chain.proceed(request), null);
+        } catch (IOException e) {
+          attempt = new Attempt(false, null, e);
+        } catch (RuntimeException e) {
+          attempt = new Attempt(false, null, new IOException(e));
+        }
+        offerAttempt(attempts, settled, attempt);
+      }
+    });
+
+    Call hedgeCall = null;
+    try {
+      int pendingCount = 1;
+      long hedgeDelay = Math.max(retryConfig.minHedgeDelay(),
+          latencyTracker.getPercentile(retryConfig.hedgeLatencyPercentile()));
+      Attempt result = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if (result == null && hedgeBudget.tryAcquireRetry()) {
+        final Call call = okHttpClient.newCall(request);
+        hedgeCall = call;
+        pendingCount++;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            Attempt attempt;
+            try {
+              attempt = new Attempt(true, call.execute(), null);
+            } catch (IOException e) {
+              attempt = new Attempt(true, null, e);
+            }
+            offerAttempt(attempts, settled, attempt);
+          }
+        });
+      }
+      if (result == null) {
+        result = attempts.take();
+      }
+      pendingCount--;
+      while (!isSuccess(request, result) && pendingCount > 0) {
+        result.close();
+        result = attempts.take();
+        pendingCount--;
+      }
+      if (pendingCount > 0) {
+        // only the loser is pending, the winner's call must live until its body is read
+        settle(attempts, settled, result.hedge ? original : null, result.hedge ? null : hedgeCall);
+      } else {
+        settle(attempts, settled, null, null);
+      }
+      if (isSuccess(request, result)) {
+        latencyTracker.record(System.currentTimeMillis() - startTime);
+      }
+      if (result.exception != null) {
+        throw result.exception;
+      }
+      return result.response;
+    } catch (InterruptedException e) {
+      settle(attempts, settled, original, hedgeCall);
+      throw new InterruptedIOException("interrupted while waiting for hedged request");
+    }
+  }
+
+  private boolean isSuccess(Request request, Attempt attempt) {
+    return attempt.response != null && retryConfig.isSuccess(request, attempt.response);
+  }
+
+  /**
+   * the result is taken, stop the losers, and close the responses arrive later
+   */
+  private static void settle(BlockingQueue<Attempt> attempts, AtomicBoolean settled, Future<?> original,
+                             Call hedgeCall) {
+    settled.set(true);
+    if (original != null) {
+      original.cancel(true);
+    }
+    if (hedgeCall != null) {
+      hedgeCall.cancel();
+    }
+    Attempt attempt;
+    while ((attempt = attempts.poll()) != null) {
+      attempt.close();
+    }
+  }
+
+  private static void offerAttempt(BlockingQueue<Attempt> attempts, AtomicBoolean settled, Attempt attempt) {
+    attempts.add(attempt);
+    if (settled.get()) {
+      // the caller returned meanwhile, nobody will take it
+      Attempt late;
+      while ((late = attempts.poll()) != null) {
+        late.close();
+      }
+    }
+  }
+
+  private static class Attempt {
+    private final boolean hedge;
+    private final Response response;
+    private final IOException exception;
+
+    Attempt(boolean hedge, Response response, IOException exception) {
+      this.hedge = hedge;
+      this.response = response;
+      this.exception = exception;
+    }
+
+    void close() {
+      if (response != null) {
+        IOUtils.close(response.body());
+      }
+    }
+  }
+}
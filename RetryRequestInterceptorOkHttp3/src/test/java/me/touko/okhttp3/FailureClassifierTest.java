@@ -0,0 +1,75 @@
+package me.touko.okhttp3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.UnknownServiceException;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+public class FailureClassifierTest {
+  private final FailureClassifier classifier = new FailureClassifier();
+  private final Request request = new Request.Builder().url("http://127.0.0.1/").build();
+
+  @Test
+  public void classifyResponse_byCode() throws Exception {
+    assertEquals(FailureClassifier.RATE_LIMITED, classify(429));
+    assertEquals(FailureClassifier.RATE_LIMITED, classify(503));
+    assertEquals(FailureClassifier.RETRYABLE, classify(401));
+    assertEquals(FailureClassifier.RETRYABLE, classify(408));
+    assertEquals(FailureClassifier.RETRYABLE, classify(425));
+    assertEquals(FailureClassifier.PERMANENT, classify(400));
+    assertEquals(FailureClassifier.PERMANENT, classify(404));
+    assertEquals(FailureClassifier.PERMANENT, classify(501));
+    assertEquals(FailureClassifier.PERMANENT, classify(505));
+    assertEquals(FailureClassifier.RETRYABLE, classify(500));
+    assertEquals(FailureClassifier.RETRYABLE, classify(502));
+  }
+
+  @Test
+  public void classifyException_requestFailuresPermanent() throws Exception {
+    assertEquals(FailureClassifier.PERMANENT, classifier.classify(request, new MalformedURLException()));
+    assertEquals(FailureClassifier.PERMANENT, classifier.classify(request, new UnknownServiceException()));
+    assertEquals(FailureClassifier.PERMANENT, classifier.classify(request, new SSLPeerUnverifiedException("pin")));
+  }
+
+  @Test
+  public void classifyException_networkFailuresRetryable() throws Exception {
+    assertEquals(FailureClassifier.RETRYABLE, classifier.classify(request, new SocketTimeoutException()));
+    assertEquals(FailureClassifier.RETRYABLE, classifier.classify(request, new UnknownHostException()));
+    assertEquals(FailureClassifier.RETRYABLE, classifier.classify(request, new InterruptedIOException()));
+    assertEquals(FailureClassifier.RETRYABLE, classifier.classify(request, new IOException()));
+  }
+
+  @Test
+  public void classifyException_canceledOrInterrupted() throws Exception {
+    assertEquals(FailureClassifier.CANCELED, classifier.classify(request, new IOException("Canceled")));
+    assertEquals(FailureClassifier.CANCELED,
+        classifier.classify(request, new InterruptedIOException("thread interrupted")));
+
+    Thread.currentThread().interrupt();
+    try {
+      assertEquals(FailureClassifier.CANCELED, classifier.classify(request, new SocketTimeoutException()));
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  private int classify(int code) {
+    return classifier.classify(request, new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(code)
+        .build());
+  }
+}
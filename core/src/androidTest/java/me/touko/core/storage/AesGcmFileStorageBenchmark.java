@@ -0,0 +1,81 @@
+package me.touko.core.storage;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.touko.core.utils.FileUtil;
+
+/**
+ * throughput of {@link AesGcmFileStorage} against plain {@link FileStorage}, run on device and read the log:
+ * adb logcat -s AesGcmBenchmark
+ */
+public class AesGcmFileStorageBenchmark extends AndroidTestCase {
+  private static final String TAG = "AesGcmBenchmark";
+  private static final int[] CONTENT_SIZES = {1024, 64 * 1024, 1024 * 1024};
+  private static final int TOTAL_BYTES = 8 * 1024 * 1024;
+
+  public void testThroughput() throws Exception {
+    File dir = new File(getContext().getCacheDir(), "aes_gcm_benchmark");
+    try {
+      for (String line : run(dir)) {
+        Log.i(TAG, line);
+      }
+    } finally {
+      FileUtil.deletePath(dir.getAbsolutePath());
+    }
+  }
+
+  /**
+   * write and read {@link #TOTAL_BYTES} per content size, the storages are created in sub dirs of dir
+   */
+  static String[] run(File dir) {
+    String[] lines = new String[CONTENT_SIZES.length * 2];
+    int line = 0;
+    for (int size : CONTENT_SIZES) {
+      char[] chars = new char[size];
+      Arrays.fill(chars, 'x');
+      String content = new String(chars);
+      int count = Math.max(1, TOTAL_BYTES / size);
+      lines[line++] = measure("plain", new FileStorage(new File(dir, "plain_" + size).getPath(), 1), content, count);
+      lines[line++] = measure("aes-gcm", new AesGcmFileStorage(new File(dir, "gcm_" + size).getPath(), 1,
+          new FixedKeyProvider()), content, count);
+    }
+    return lines;
+  }
+
+  private static String measure(String name, Storage storage, String content, int count) {
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      assertTrue(storage.put("key" + i, content));
+    }
+    long writeNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      assertEquals(content.length(), storage.get("key" + i).length());
+    }
+    long readNanos = System.nanoTime() - start;
+    double megaBytes = (double) content.length() * count / (1024 * 1024);
+    return String.format("%-8s %8d bytes x %5d: write %7.2f MB/s, read %7.2f MB/s", name, content.length(), count,
+        megaBytes * 1e9 / writeNanos, megaBytes * 1e9 / readNanos);
+  }
+
+  private static class FixedKeyProvider implements KeyProvider {
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+
+    @Override
+    public String getCurrentKeyId() {
+      return "k1";
+    }
+
+    @Override
+    public SecretKey getKey(String keyId) {
+      return "k1".equals(keyId) ? key : null;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package me.touko.core.storage;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+
+import me.touko.core.utils.FileUtil;
+
+/**
+ * {@link FileStorage#getKeys()} and {@link FileStorage#has(String)} of flat and sharded layout by key count,
+ * run on device and read the log: adb logcat -s FileStorageBenchmark
+ */
+public class FileStorageBenchmark extends AndroidTestCase {
+  private static final String TAG = "FileStorageBenchmark";
+  private static final int[] KEY_COUNTS = {1000, 10000, 100000};
+  private static final int HAS_COUNT = 1000;
+
+  public void testKeysAndHas() throws Exception {
+    File dir = new File(getContext().getCacheDir(), "file_storage_benchmark");
+    try {
+      for (String line : run(dir)) {
+        Log.i(TAG, line);
+      }
+    } finally {
+      FileUtil.deletePath(dir.getAbsolutePath());
+    }
+  }
+
+  /**
+   * fill a flat and a sharded storage per key count in sub dirs of dir, then time getKeys and has
+   */
+  static String[] run(File dir) {
+    String[] lines = new String[KEY_COUNTS.length * 2];
+    int line = 0;
+    for (int count : KEY_COUNTS) {
+      lines[line++] = measure("flat", new FileStorage(new File(dir, "flat_" + count).getPath(), 1), count);
+      lines[line++] = measure("sharded", new FileStorage(new File(dir, "sharded_" + count).getPath(), 1, true),
+          count);
+    }
+    return lines;
+  }
+
+  private static String measure(String name, FileStorage storage, int count) {
+    for (int i = 0; i < count; i++) {
+      assertTrue(storage.put("key" + i, "v"));
+    }
+    long start = System.nanoTime();
+    assertEquals(count, storage.getKeys().size());
+    long keysNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < HAS_COUNT; i++) {
+      assertTrue(storage.has("key" + (i * 7919 % count)));
+      assertFalse(storage.has("missing" + i));
+    }
+    long hasNanos = (System.nanoTime() - start) / (HAS_COUNT * 2);
+    return String.format("%-8s %6d keys: getKeys %8.2f ms, has %6.2f us", name, count, keysNanos / 1e6,
+        hasNanos / 1e3);
+  }
+}
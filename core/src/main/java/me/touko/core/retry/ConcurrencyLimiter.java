@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+/**
+ * a adaptive limit of concurrent calls, AIMD driven by round-trip time and call outcome.
+ * <p/>
+ * the lowest round-trip time seen in a window is taken as the no-load latency. while samples stay close to it,
+ * the limit grow by one per limit samples, so about one per round trip; when latency rise over
+ * {@link #RTT_TOLERANCE} times of it, or a call failed, the limit is cut by {@link #BACKOFF_RATIO}.
+ * the no-load latency is re-measured every {@link #MIN_RTT_WINDOW_MILLIS}, so a change of network is followed.
+ * <p/>
+ * the limit only grow when the calls in flight are near the limit, a caller not using the limit can't inflate it.
+ */
+public class ConcurrencyLimiter {
+  private static final double RTT_TOLERANCE = 2.0;
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final long MIN_RTT_WINDOW_MILLIS = 60 * 1000;
+
+  private final int maxLimit;
+  private double limit;
+  private int inFlight;
+  private long minRtt = -1;
+  private long minRttTime;
+
+  /**
+   * @param initialLimit the limit before any sample
+   * @param maxLimit the max limit
+   */
+  public ConcurrencyLimiter(int initialLimit, int maxLimit) {
+    if (initialLimit <= 0 || maxLimit < initialLimit) {
+      throw new IllegalArgumentException("initialLimit must > 0 and maxLimit must >= initialLimit");
+    }
+    this.limit = initialLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  /**
+   * block until the calls in flight are under limit, then count the new call in flight
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (inFlight >= getLimit()) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  /**
+   * the call acquired is finished, adjust limit by its sample
+   *
+   * @param rttMillis the round-trip time of call
+   * @param success whether the call succeeded
+   */
+  public synchronized void release(long rttMillis, boolean success) {
+    long now = System.currentTimeMillis();
+    boolean limited = inFlight * 2 >= getLimit();
+    inFlight--;
+    if (success && (minRtt < 0 || rttMillis < minRtt || now - minRttTime > MIN_RTT_WINDOW_MILLIS)) {
+      minRtt = rttMillis;
+      minRttTime = now;
+    }
+    if (!success || rttMillis > minRtt * RTT_TOLERANCE) {
+      limit = Math.max(1, limit * BACKOFF_RATIO);
+    } else if (limited) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  /**
+   * block until no call in flight
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void awaitIdle() throws InterruptedException {
+    while (inFlight > 0) {
+      wait();
+    }
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ConcurrencyLimiter{limit=" + limit + ", inFlight=" + inFlight + ", minRtt=" + minRtt + "}";
+  }
+}
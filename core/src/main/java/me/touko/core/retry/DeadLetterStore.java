@@ -0,0 +1,135 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import me.touko.core.storage.ObjStorage;
+
+/**
+ * a bounded store of records given up by retry, kept for inspect or replay after the cause is fixed.
+ * <p/>
+ * the key of a record starts with the time it's added, so keys are in age order, the oldest records are dropped
+ * when over {@link #getMaxCount()}, and records older than {@link #getLife()} are dropped on every add or
+ * {@link #trim()}, both by a range scan of keys, the records are never decoded for it.
+ */
+public class DeadLetterStore<T> {
+  private static final String KEY_PREFIX = "dead_";
+  private static final String KEY_SEPARATOR = "_";
+
+  private final ObjStorage<T> storage;
+  private final int maxCount;
+  private final long life;
+
+  /**
+   * @param storage the storage only for dead letters
+   * @param maxCount the max count of records
+   * @param life the records older than life are dropped, < 0 means never
+   */
+  public DeadLetterStore(ObjStorage<T> storage, int maxCount, long life) {
+    if (storage == null || maxCount <= 0) {
+      throw new IllegalArgumentException("storage can't be null and maxCount must > 0");
+    }
+    this.storage = storage;
+    this.maxCount = maxCount;
+    this.life = life;
+  }
+
+  /**
+   * add a record, then drop records over limits
+   *
+   * @param id the id of record, a record with same id added earlier is kept
+   * @param item the record
+   * @return false if failed to store
+   */
+  public synchronized boolean add(String id, T item) {
+    boolean result = storage.put(toKey(System.currentTimeMillis(), id), item);
+    trim();
+    return result;
+  }
+
+  /**
+   * @return the keys of records, oldest first
+   */
+  public synchronized List<String> getKeys() {
+    List<String> keys = new ArrayList<>();
+    Iterator<String> iterator = storage.scanPrefix(KEY_PREFIX);
+    while (iterator.hasNext()) {
+      keys.add(iterator.next());
+    }
+    // the scan order is up to the storage, keys start with the add time
+    Collections.sort(keys);
+    return keys;
+  }
+
+  public synchronized T get(String key) {
+    return storage.getFirst(key);
+  }
+
+  public synchronized boolean remove(String key) {
+    return storage.delete(key);
+  }
+
+  /**
+   * remove all records
+   *
+   * @return the count of records removed
+   */
+  public synchronized int purge() {
+    int count = 0;
+    for (String key : getKeys()) {
+      if (storage.delete(key)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * drop the records older than life, then the oldest records over max count
+   */
+  public synchronized void trim() {
+    if (life >= 0) {
+      // "dead_<time>" sorts before every key added at that time
+      Iterator<String> expired = storage.scanRange(KEY_PREFIX, toKey(System.currentTimeMillis() - life, ""));
+      while (expired.hasNext()) {
+        storage.delete(expired.next());
+      }
+    }
+    List<String> keys = getKeys();
+    for (int i = 0; i < keys.size() - maxCount; i++) {
+      storage.delete(keys.get(i));
+    }
+  }
+
+  public int getMaxCount() {
+    return maxCount;
+  }
+
+  public long getLife() {
+    return life;
+  }
+
+  private static String toKey(long time, String id) {
+    // fixed width, so string order is time order
+    return KEY_PREFIX + String.format(Locale.US, "%013d", Math.max(0, time)) + KEY_SEPARATOR + id;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * decide which queued records to evict when a new record makes the queue over its limits.
+ */
+public abstract class EvictionPolicy {
+  /**
+   * evict the records created earliest
+   */
+  public static final EvictionPolicy DROP_OLDEST = new OrderedEvictionPolicy(new Comparator<QueueManifest.Entry>() {
+    @Override
+    public int compare(QueueManifest.Entry lhs, QueueManifest.Entry rhs) {
+      return compareLong(lhs.createTime, rhs.createTime);
+    }
+  });
+
+  /**
+   * evict the largest records, the new record is rejected if it's the largest
+   */
+  public static final EvictionPolicy DROP_LARGEST = new OrderedEvictionPolicy(new Comparator<QueueManifest.Entry>() {
+    @Override
+    public int compare(QueueManifest.Entry lhs, QueueManifest.Entry rhs) {
+      return compareLong(rhs.size, lhs.size);
+    }
+  });
+
+  /**
+   * evict the records with lowest priority, the oldest first among same priority,
+   * the new record is rejected if its priority is the lowest
+   */
+  public static final EvictionPolicy DROP_LOWEST_PRIORITY = new OrderedEvictionPolicy(
+      new Comparator<QueueManifest.Entry>() {
+        @Override
+        public int compare(QueueManifest.Entry lhs, QueueManifest.Entry rhs) {
+          if (lhs.priority != rhs.priority) {
+            return lhs.priority < rhs.priority ? -1 : 1;
+          }
+          return compareLong(lhs.createTime, rhs.createTime);
+        }
+      });
+
+  /**
+   * keep the queued records, reject the new record
+   */
+  public static final EvictionPolicy REJECT_NEW = new EvictionPolicy() {
+    @Override
+    public List<QueueManifest.Entry> selectEvictions(Collection<QueueManifest.Entry> queued,
+                                                     QueueManifest.Entry incoming, int overCount, long overBytes) {
+      return null;
+    }
+  };
+
+  /**
+   * select the queued records to evict, the queue is in limits before incoming is added
+   *
+   * @param queued the queued records can be evicted, not include incoming and the records in flight
+   * @param incoming the new record
+   * @param overCount the count of records to evict at least
+   * @param overBytes the byte size to evict at least
+   * @return the records to evict, or null to reject incoming
+   */
+  public abstract List<QueueManifest.Entry> selectEvictions(Collection<QueueManifest.Entry> queued,
+                                                            QueueManifest.Entry incoming, int overCount,
+                                                            long overBytes);
+
+  private static int compareLong(long lhs, long rhs) {
+    return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+  }
+
+  /**
+   * evict records in the order of comparator, reject incoming if it comes first
+   */
+  private static class OrderedEvictionPolicy extends EvictionPolicy {
+    private final Comparator<QueueManifest.Entry> evictOrder;
+
+    OrderedEvictionPolicy(Comparator<QueueManifest.Entry> evictOrder) {
+      this.evictOrder = evictOrder;
+    }
+
+    @Override
+    public List<QueueManifest.Entry> selectEvictions(Collection<QueueManifest.Entry> queued,
+                                                     QueueManifest.Entry incoming, int overCount, long overBytes) {
+      List<QueueManifest.Entry> candidates = new ArrayList<>(queued);
+      candidates.add(incoming);
+      Collections.sort(candidates, evictOrder);
+      List<QueueManifest.Entry> evictions = new ArrayList<>();
+      long evictedBytes = 0;
+      for (QueueManifest.Entry candidate : candidates) {
+        if (evictions.size() >= overCount && evictedBytes >= overBytes) {
+          return evictions;
+        }
+        if (candidate == incoming) {
+          return null;
+        }
+        evictions.add(candidate);
+        evictedBytes += candidate.size;
+      }
+      return evictions.size() >= overCount && evictedBytes >= overBytes ? evictions : null;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import java.util.Arrays;
+
+/**
+ * keep the latest latency samples in a ring, and tell their percentiles, like p95 to decide when to hedge.
+ */
+public class LatencyTracker {
+  private final long[] samples;
+  private final int minSampleCount;
+  private int next;
+  private int count;
+
+  /**
+   * @param capacity the count of latest samples kept
+   * @param minSampleCount percentiles are unknown before so many samples
+   */
+  public LatencyTracker(int capacity, int minSampleCount) {
+    if (capacity <= 0 || minSampleCount <= 0 || minSampleCount > capacity) {
+      throw new IllegalArgumentException("capacity and minSampleCount must > 0, minSampleCount must <= capacity");
+    }
+    this.samples = new long[capacity];
+    this.minSampleCount = minSampleCount;
+  }
+
+  public synchronized void record(long latencyMillis) {
+    samples[next] = latencyMillis;
+    next = (next + 1) % samples.length;
+    count = Math.min(count + 1, samples.length);
+  }
+
+  /**
+   * @param percentile the percentile in [0, 1], like 0.95
+   * @return the latency in millis, -1 if samples are not enough
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count < minSampleCount) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+
+  public synchronized int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import me.touko.core.storage.Storage;
+import me.touko.core.utils.StringUtils;
+
+/**
+ * in-memory leases of in-flight records, a record is leased when it's picked for sending, and released when
+ * the attempt finished, a lease expire after its duration, so a record held by a stuck attempt can be picked again.
+ * every lease has a token, only the holder of the token can release it, so the first holder of an expired lease
+ * can't release the lease granted again.
+ * <p/>
+ * the leases are journaled in storage, so after a crash {@link #recover()} tell which records were in flight.
+ * the journal is cheap: acquires and releases are buffered and written together in one append by {@link #flush()},
+ * which must be called before a leased record is sent. the journal is deleted when no lease is held, and rewritten
+ * with one line per lease when most lines are outdated. a release buffered when the process died is lost, so
+ * {@link #recover()} may return a few records released since the last flush.
+ */
+public class LeaseTable {
+  private static final String JOURNAL_ACQUIRE = "+";
+  private static final String JOURNAL_RELEASE = "-";
+  private static final String LINE_FEED = "\n";
+  private static final int MIN_COMPACT_LINES = 64;
+
+  private final Storage journalStorage;
+  private final String journalKey;
+  private final Map<String, Lease> leases = new LinkedHashMap<>();
+  // the lines not written yet, and the count of lines in journal
+  private final StringBuilder pendingLines = new StringBuilder();
+  private int pendingCount;
+  private int lineCount;
+  private long lastToken;
+
+  private static class Lease {
+    private final long token;
+    private final long expireTime;
+
+    Lease(long token, long expireTime) {
+      this.token = token;
+      this.expireTime = expireTime;
+    }
+  }
+
+  /**
+   * @param journalStorage the storage to keep journal
+   * @param journalKey the key of journal in storage
+   */
+  public LeaseTable(Storage journalStorage, String journalKey) {
+    if (journalStorage == null || StringUtils.isEmpty(journalKey)) {
+      throw new IllegalArgumentException("journalStorage and journalKey can't be empty");
+    }
+    this.journalStorage = journalStorage;
+    this.journalKey = journalKey;
+  }
+
+  /**
+   * lease the record of id, the lease is journaled on next {@link #flush()}
+   *
+   * @param id the id of record
+   * @param durationMillis the lease expire after duration
+   * @return the token of lease to release it, 0 if the record is leased and not expired
+   */
+  public synchronized long acquire(String id, long durationMillis) {
+    long now = System.currentTimeMillis();
+    Lease lease = leases.get(id);
+    if (lease != null && lease.expireTime > now) {
+      return 0;
+    }
+    lease = new Lease(++lastToken, now + durationMillis);
+    leases.put(id, lease);
+    pendingLines.append(JOURNAL_ACQUIRE).append(id).append(LINE_FEED);
+    pendingCount++;
+    return lease.token;
+  }
+
+  /**
+   * release the lease of id if it's still held by token, the journal is deleted when no lease is held
+   *
+   * @param id the id of record
+   * @param token the token returned by {@link #acquire(String, long)}
+   * @return false if the lease is not held by token, like it expired and is granted again
+   */
+  public synchronized boolean release(String id, long token) {
+    Lease lease = leases.get(id);
+    if (lease == null || lease.token != token) {
+      return false;
+    }
+    leases.remove(id);
+    if (leases.isEmpty()) {
+      clearPendingLines();
+      if (lineCount > 0) {
+        journalStorage.delete(journalKey);
+        lineCount = 0;
+      }
+    } else {
+      pendingLines.append(JOURNAL_RELEASE).append(id).append(LINE_FEED);
+      pendingCount++;
+    }
+    return true;
+  }
+
+  /**
+   * write the buffered acquires and releases in one append, or rewrite the journal if most lines are outdated
+   */
+  public synchronized void flush() {
+    if (pendingCount == 0) {
+      return;
+    }
+    if (lineCount + pendingCount > Math.max(MIN_COMPACT_LINES, leases.size() * 4)) {
+      StringBuilder journal = new StringBuilder();
+      for (String id : leases.keySet()) {
+        journal.append(JOURNAL_ACQUIRE).append(id).append(LINE_FEED);
+      }
+      if (journalStorage.put(journalKey, journal.toString())) {
+        lineCount = leases.size();
+        clearPendingLines();
+      }
+    } else if (journalStorage.append(journalKey, pendingLines.toString())) {
+      lineCount += pendingCount;
+      clearPendingLines();
+    }
+  }
+
+  private void clearPendingLines() {
+    pendingLines.setLength(0);
+    pendingCount = 0;
+  }
+
+  /**
+   * whether the record of id is leased and not expired
+   *
+   * @param id the id of record
+   * @return is leased
+   */
+  public synchronized boolean isLeased(String id) {
+    Lease lease = leases.get(id);
+    return lease != null && lease.expireTime > System.currentTimeMillis();
+  }
+
+  /**
+   * read the journal left by last process and delete it, must be called before any acquire
+   *
+   * @return the ids leased but not released by last process, in acquire order
+   */
+  public synchronized Set<String> recover() {
+    Set<String> leasedIds = new LinkedHashSet<>();
+    String journal = journalStorage.get(journalKey);
+    if (!StringUtils.isEmpty(journal)) {
+      for (String line : journal.split(LINE_FEED)) {
+        if (line.startsWith(JOURNAL_ACQUIRE)) {
+          leasedIds.add(line.substring(JOURNAL_ACQUIRE.length()));
+        } else if (line.startsWith(JOURNAL_RELEASE)) {
+          leasedIds.remove(line.substring(JOURNAL_RELEASE.length()));
+        }
+      }
+    }
+    journalStorage.delete(journalKey);
+    lineCount = 0;
+    return leasedIds;
+  }
+}
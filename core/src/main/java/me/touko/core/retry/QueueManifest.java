@@ -0,0 +1,316 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import me.touko.core.storage.Storage;
+import me.touko.core.utils.NumberParseUtils;
+import me.touko.core.utils.StringUtils;
+
+/**
+ * a compact index of queued records, keep what is needed to schedule a record without decoding it.
+ * <p/>
+ * the manifest is a append-only log in storage, one line per change, rewritten by {@link #compact()} when most
+ * lines are outdated. it's a hint, the record itself is authoritative, so a manifest torn by crash only cost
+ * re-indexing the records it missed, see {@link #load()}.
+ * <p/>
+ * entries with a deadline are also indexed in deadline order, see {@link #getExpiredEntries(long, int, EntryFilter)},
+ * and entries with a due time in due time order, see {@link #getNextDueTime(long)}.
+ */
+public class QueueManifest {
+  private static final String LINE_PUT = "+";
+  private static final String LINE_REMOVE = "-";
+  private static final String LINE_FEED = "\n";
+  private static final String FIELD_SEPARATOR = " ";
+  private static final int PUT_FIELD_COUNT = 8;
+  private static final int MIN_COMPACT_LINES = 64;
+
+  private final Storage storage;
+  private final String manifestKey;
+  private final TreeMap<String, Entry> entries = new TreeMap<>();
+  private final TreeSet<Entry> deadlineIndex = new TreeSet<>(new Comparator<Entry>() {
+    @Override
+    public int compare(Entry lhs, Entry rhs) {
+      if (lhs.deadline != rhs.deadline) {
+        return lhs.deadline < rhs.deadline ? -1 : 1;
+      }
+      return lhs.key.compareTo(rhs.key);
+    }
+  });
+  private final TreeSet<Entry> dueTimeIndex = new TreeSet<>(new Comparator<Entry>() {
+    @Override
+    public int compare(Entry lhs, Entry rhs) {
+      if (lhs.dueTime != rhs.dueTime) {
+        return lhs.dueTime < rhs.dueTime ? -1 : 1;
+      }
+      return lhs.key.compareTo(rhs.key);
+    }
+  });
+  private int lineCount;
+  private long totalBytes;
+
+  /**
+   * the index of one record
+   */
+  public static class Entry {
+    public final String key;
+    public final long deadline;
+    public final int retryTimes;
+    public final int maxRetryTimes;
+    public final long dueTime;
+    public final long size;
+    public final long createTime;
+    public final int priority;
+
+    /**
+     * @param key the key of record
+     * @param deadline the deadline of record, < 0 means never
+     * @param retryTimes the retry times of record
+     * @param maxRetryTimes the max retry times of record, < 0 means unlimited
+     * @param dueTime the time record can be sent
+     * @param size the stored byte size of record, used to validate the entry
+     * @param createTime the time record is created
+     * @param priority the priority of record, used by {@link EvictionPolicy}
+     */
+    public Entry(String key, long deadline, int retryTimes, int maxRetryTimes, long dueTime, long size,
+                 long createTime, int priority) {
+      this.key = key;
+      this.deadline = deadline;
+      this.retryTimes = retryTimes;
+      this.maxRetryTimes = maxRetryTimes;
+      this.dueTime = dueTime;
+      this.size = size;
+      this.createTime = createTime;
+      this.priority = priority;
+    }
+
+    public boolean isDead(long now) {
+      return (deadline >= 0 && deadline < now) || (maxRetryTimes >= 0 && retryTimes > maxRetryTimes);
+    }
+
+    private String toLine() {
+      return LINE_PUT + key + FIELD_SEPARATOR + deadline + FIELD_SEPARATOR + retryTimes + FIELD_SEPARATOR
+          + maxRetryTimes + FIELD_SEPARATOR + dueTime + FIELD_SEPARATOR + size + FIELD_SEPARATOR + createTime
+          + FIELD_SEPARATOR + priority;
+    }
+
+    private static Entry fromLine(String line) {
+      String[] fields = line.substring(LINE_PUT.length()).split(FIELD_SEPARATOR);
+      if (fields.length != PUT_FIELD_COUNT || StringUtils.isEmpty(fields[0])) {
+        return null;
+      }
+      long size = NumberParseUtils.parseLong(fields[5], -1);
+      if (size < 0) {
+        return null;
+      }
+      return new Entry(fields[0], NumberParseUtils.parseLong(fields[1], -1), NumberParseUtils.parseInt(fields[2], 0),
+          NumberParseUtils.parseInt(fields[3], -1), NumberParseUtils.parseLong(fields[4], 0), size,
+          NumberParseUtils.parseLong(fields[6], 0), NumberParseUtils.parseInt(fields[7], 0));
+    }
+  }
+
+  /**
+   * pick the entries, see {@link #getExpiredEntries(long, int, EntryFilter)}
+   */
+  public interface EntryFilter {
+    boolean accept(Entry entry);
+  }
+
+  /**
+   * @param storage the storage to keep manifest
+   * @param manifestKey the key of manifest in storage
+   */
+  public QueueManifest(Storage storage, String manifestKey) {
+    if (storage == null || StringUtils.isEmpty(manifestKey)) {
+      throw new IllegalArgumentException("storage and manifestKey can't be empty");
+    }
+    this.storage = storage;
+    this.manifestKey = manifestKey;
+  }
+
+  /**
+   * load the manifest from storage, broken lines are skipped
+   *
+   * @return false if no manifest in storage
+   */
+  public synchronized boolean load() {
+    entries.clear();
+    deadlineIndex.clear();
+    dueTimeIndex.clear();
+    lineCount = 0;
+    totalBytes = 0;
+    String content = storage.get(manifestKey);
+    if (StringUtils.isEmpty(content)) {
+      return false;
+    }
+    for (String line : content.split(LINE_FEED)) {
+      if (line.startsWith(LINE_PUT)) {
+        Entry entry = Entry.fromLine(line);
+        if (entry != null) {
+          putEntry(entry);
+        }
+      } else if (line.startsWith(LINE_REMOVE)) {
+        removeEntry(line.substring(LINE_REMOVE.length()));
+      }
+      lineCount++;
+    }
+    return true;
+  }
+
+  public synchronized void put(Entry entry) {
+    putEntry(entry);
+    appendLine(entry.toLine());
+  }
+
+  public synchronized void remove(String key) {
+    if (removeEntry(key)) {
+      appendLine(LINE_REMOVE + key);
+    }
+  }
+
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * @return all entries in key order
+   */
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries.values());
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the total stored byte size of entries, tracked on every change
+   */
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * get the entries which deadline < now, in deadline order
+   *
+   * @param now the current time
+   * @param limit the max count of entries to get
+   * @param filter the expired entries it rejects are skipped and not counted in limit, null means accept all
+   * @return expired entries
+   */
+  public synchronized List<Entry> getExpiredEntries(long now, int limit, EntryFilter filter) {
+    List<Entry> expiredEntries = new ArrayList<>();
+    for (Entry entry : deadlineIndex) {
+      if (entry.deadline >= now || expiredEntries.size() >= limit) {
+        break;
+      }
+      if (filter == null || filter.accept(entry)) {
+        expiredEntries.add(entry);
+      }
+    }
+    return expiredEntries;
+  }
+
+  /**
+   * @return the earliest deadline of entries, -1 if no entry has deadline
+   */
+  public synchronized long getNextDeadline() {
+    return deadlineIndex.isEmpty() ? -1 : deadlineIndex.first().deadline;
+  }
+
+  /**
+   * @param now the current time
+   * @return the earliest deadline >= now, -1 if no entry expire later
+   */
+  public synchronized long getNextDeadline(long now) {
+    for (Entry entry : deadlineIndex) {
+      if (entry.deadline >= now) {
+        return entry.deadline;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param now the current time
+   * @return the earliest due time > now, -1 if no entry is held back
+   */
+  public synchronized long getNextDueTime(long now) {
+    // the smallest key is empty, so the probe is before all entries due at now + 1
+    Entry probe = new Entry("", -1, 0, -1, now + 1, 0, 0, 0);
+    Entry entry = dueTimeIndex.ceiling(probe);
+    return entry == null ? -1 : entry.dueTime;
+  }
+
+  private void putEntry(Entry entry) {
+    removeEntry(entry.key);
+    entries.put(entry.key, entry);
+    totalBytes += entry.size;
+    if (entry.deadline >= 0) {
+      deadlineIndex.add(entry);
+    }
+    if (entry.dueTime > 0) {
+      dueTimeIndex.add(entry);
+    }
+  }
+
+  private boolean removeEntry(String key) {
+    Entry entry = entries.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    deadlineIndex.remove(entry);
+    dueTimeIndex.remove(entry);
+    totalBytes -= entry.size;
+    return true;
+  }
+
+  /**
+   * rewrite the manifest with one line per entry if most lines are outdated
+   */
+  public synchronized void compact() {
+    if (lineCount <= Math.max(MIN_COMPACT_LINES, entries.size() * 2)) {
+      return;
+    }
+    if (entries.isEmpty()) {
+      storage.delete(manifestKey);
+      lineCount = 0;
+      return;
+    }
+    StringBuilder content = new StringBuilder();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      content.append(entry.getValue().toLine()).append(LINE_FEED);
+    }
+    if (storage.put(manifestKey, content.toString())) {
+      lineCount = entries.size();
+    }
+  }
+
+  private void appendLine(String line) {
+    storage.append(manifestKey, line + LINE_FEED);
+    lineCount++;
+    if (lineCount > MIN_COMPACT_LINES && lineCount > entries.size() * 4) {
+      compact();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+/**
+ * cap retries relative to fresh traffic, in a sliding window, retries are allowed up to
+ * ratio * first attempts + minRetriesPerSecond * window seconds, so retries can't multiply the load of a struggling
+ * server, and a few retries still go when there is no fresh traffic.
+ * <p/>
+ * the window is split into {@link #SLOT_COUNT} slots, a slot is cleared when it's reused, so counts expire
+ * in steps of one slot.
+ */
+public class RetryBudget {
+  private static final int SLOT_COUNT = 10;
+
+  private final double ratio;
+  private final double minRetriesPerSecond;
+  private final long windowMillis;
+  private final long slotMillis;
+  private final long[] requestSlots = new long[SLOT_COUNT];
+  private final long[] retrySlots = new long[SLOT_COUNT];
+  private long currentSlot;
+  private long rejectedCount;
+
+  /**
+   * @param ratio the max count of retries per first attempt
+   * @param minRetriesPerSecond the retries allowed per second without fresh traffic
+   * @param windowMillis the length of sliding window
+   */
+  public RetryBudget(double ratio, double minRetriesPerSecond, long windowMillis) {
+    if (ratio < 0 || minRetriesPerSecond < 0 || windowMillis < SLOT_COUNT) {
+      throw new IllegalArgumentException("ratio and minRetriesPerSecond must >= 0, windowMillis must >= "
+          + SLOT_COUNT);
+    }
+    this.ratio = ratio;
+    this.minRetriesPerSecond = minRetriesPerSecond;
+    this.windowMillis = windowMillis;
+    this.slotMillis = windowMillis / SLOT_COUNT;
+    this.currentSlot = System.currentTimeMillis() / slotMillis;
+  }
+
+  /**
+   * count a first attempt
+   */
+  public synchronized void recordRequest() {
+    advance();
+    requestSlots[(int) (currentSlot % SLOT_COUNT)]++;
+  }
+
+  /**
+   * take a retry from budget
+   *
+   * @return false if budget is exhausted, the retry should not be sent
+   */
+  public synchronized boolean tryAcquireRetry() {
+    advance();
+    if (sum(retrySlots) >= getLimit()) {
+      rejectedCount++;
+      return false;
+    }
+    retrySlots[(int) (currentSlot % SLOT_COUNT)]++;
+    return true;
+  }
+
+  /**
+   * @return the count of first attempts in window
+   */
+  public synchronized long getRequestCount() {
+    advance();
+    return sum(requestSlots);
+  }
+
+  /**
+   * @return the count of retries in window
+   */
+  public synchronized long getRetryCount() {
+    advance();
+    return sum(retrySlots);
+  }
+
+  /**
+   * @return the count of retries can be taken now
+   */
+  public synchronized long getAvailableRetries() {
+    advance();
+    return Math.max(0, (long) Math.ceil(getLimit()) - sum(retrySlots));
+  }
+
+  /**
+   * @return the time the counts of the oldest slot expire, the retries rejected now may be allowed then
+   */
+  public synchronized long getNextSlotTime() {
+    advance();
+    return (currentSlot + 1) * slotMillis;
+  }
+
+  /**
+   * @return the count of retries rejected since created
+   */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  private double getLimit() {
+    return ratio * sum(requestSlots) + minRetriesPerSecond * windowMillis / 1000;
+  }
+
+  private void advance() {
+    long slot = System.currentTimeMillis() / slotMillis;
+    for (long i = Math.max(currentSlot + 1, slot - SLOT_COUNT + 1); i <= slot; i++) {
+      requestSlots[(int) (i % SLOT_COUNT)] = 0;
+      retrySlots[(int) (i % SLOT_COUNT)] = 0;
+    }
+    if (slot > currentSlot) {
+      currentSlot = slot;
+    }
+  }
+
+  private static long sum(long[] slots) {
+    long sum = 0;
+    for (long count : slots) {
+      sum += count;
+    }
+    return sum;
+  }
+
+  @Override
+  public synchronized String toString() {
+    advance();
+    return "RetryBudget{requestCount=" + sum(requestSlots) + ", retryCount=" + sum(retrySlots)
+        + ", limit=" + getLimit() + ", rejectedCount=" + rejectedCount + "}";
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+import me.touko.core.utils.NumberParseUtils;
+import me.touko.core.utils.StringUtils;
+
+/**
+ * the retry policy of one request, override the global config, like a long life for a payment result and
+ * a short life for a analytics ping.
+ * <p/>
+ * it can also be carried by a header, see {@link #HEADER_NAME}, the value is like
+ * "life=86400000; maxRetryTimes=10; backoff=60000; priority=5", missing fields take the default.
+ */
+public class RetryPolicy {
+  /**
+   * the header to carry policy, it's removed before the request is sent
+   */
+  public static final String HEADER_NAME = "X-Retry-Policy";
+
+  private static final String FIELD_LIFE = "life";
+  private static final String FIELD_MAX_RETRY_TIMES = "maxRetryTimes";
+  private static final String FIELD_BACKOFF = "backoff";
+  private static final String FIELD_PRIORITY = "priority";
+  private static final String FIELD_SEPARATOR = ";";
+  private static final String VALUE_SEPARATOR = "=";
+
+  private final long life;
+  private final int maxRetryTimes;
+  private final long backoff;
+  private final int priority;
+
+  /**
+   * @param life the life of request in millis, < 0 means forever
+   * @param maxRetryTimes the max retry times, < 0 means unlimited
+   * @param backoff the delay before next attempt after a failure in millis, doubled for each retry, 0 means none
+   * @param priority the priority, higher is retried first and evicted last
+   */
+  public RetryPolicy(long life, int maxRetryTimes, long backoff, int priority) {
+    this.life = life;
+    this.maxRetryTimes = maxRetryTimes;
+    this.backoff = Math.max(0, backoff);
+    this.priority = priority;
+  }
+
+  public long getLife() {
+    return life;
+  }
+
+  public int getMaxRetryTimes() {
+    return maxRetryTimes;
+  }
+
+  public long getBackoff() {
+    return backoff;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * @return the value for {@link #HEADER_NAME}
+   */
+  public String toHeaderValue() {
+    return FIELD_LIFE + VALUE_SEPARATOR + life + FIELD_SEPARATOR + " "
+        + FIELD_MAX_RETRY_TIMES + VALUE_SEPARATOR + maxRetryTimes + FIELD_SEPARATOR + " "
+        + FIELD_BACKOFF + VALUE_SEPARATOR + backoff + FIELD_SEPARATOR + " "
+        + FIELD_PRIORITY + VALUE_SEPARATOR + priority;
+  }
+
+  /**
+   * parse the value of {@link #HEADER_NAME}, unknown or broken fields are ignored
+   *
+   * @param value the header value
+   * @param defaults the policy of missing fields
+   * @return the policy
+   */
+  public static RetryPolicy parse(String value, RetryPolicy defaults) {
+    if (StringUtils.isEmpty(value)) {
+      return defaults;
+    }
+    long life = defaults.life;
+    int maxRetryTimes = defaults.maxRetryTimes;
+    long backoff = defaults.backoff;
+    int priority = defaults.priority;
+    for (String field : value.split(FIELD_SEPARATOR)) {
+      int index = field.indexOf(VALUE_SEPARATOR);
+      if (index < 0) {
+        continue;
+      }
+      String name = field.substring(0, index).trim();
+      String fieldValue = field.substring(index + 1).trim();
+      if (FIELD_LIFE.equals(name)) {
+        life = NumberParseUtils.parseLong(fieldValue, life);
+      } else if (FIELD_MAX_RETRY_TIMES.equals(name)) {
+        maxRetryTimes = NumberParseUtils.parseInt(fieldValue, maxRetryTimes);
+      } else if (FIELD_BACKOFF.equals(name)) {
+        backoff = NumberParseUtils.parseLong(fieldValue, backoff);
+      } else if (FIELD_PRIORITY.equals(name)) {
+        priority = NumberParseUtils.parseInt(fieldValue, priority);
+      }
+    }
+    return new RetryPolicy(life, maxRetryTimes, backoff, priority);
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy{" + toHeaderValue() + "}";
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.retry;
+
+/**
+ * a token bucket, refilled at a fixed rate up to its capacity, used to limit the rate of requests or bytes.
+ * <p/>
+ * {@link #reserve(long)} never blocks, it takes the tokens at once, and the bucket goes into debt if not enough,
+ * the caller wait the returned delay before use them, so a single take larger than capacity is still allowed.
+ */
+public class TokenBucket {
+  private final double tokensPerMillis;
+  private final double capacity;
+  private double tokens;
+  private long refillTime;
+
+  /**
+   * @param tokensPerSecond the refill rate
+   * @param capacity the max tokens can be saved, the burst size
+   */
+  public TokenBucket(double tokensPerSecond, double capacity) {
+    if (tokensPerSecond <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("tokensPerSecond and capacity must > 0");
+    }
+    this.tokensPerMillis = tokensPerSecond / 1000;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.refillTime = System.currentTimeMillis();
+  }
+
+  /**
+   * take tokens from bucket
+   *
+   * @param count the count of tokens
+   * @return the millis to wait before the tokens can be used, 0 if available now
+   */
+  public synchronized long reserve(long count) {
+    refill(System.currentTimeMillis());
+    tokens -= count;
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long) Math.ceil(-tokens / tokensPerMillis);
+  }
+
+  /**
+   * @return the available tokens now, negative if in debt
+   */
+  public synchronized double getTokens() {
+    refill(System.currentTimeMillis());
+    return tokens;
+  }
+
+  private void refill(long now) {
+    if (now > refillTime) {
+      tokens = Math.min(capacity, tokens + (now - refillTime) * tokensPerMillis);
+      refillTime = now;
+    }
+  }
+}
@@ -0,0 +1,734 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import me.touko.core.utils.ExecutorFactory;
+import me.touko.core.utils.IOUtils;
+
+/**
+ * a storage encrypt content with AES-GCM, content is split into fixed size frames, every frame has it's own
+ * random nonce and authentication tag, so content can be encrypted and decrypted as a stream.
+ * <p/>
+ * the frames of a file are numbered from 0, and the last frame of every write is flagged, both are authenticated
+ * with the frame, so a tampered, reordered or dropped frame, or a file cut inside a write, is detected when read.
+ * a file cut exactly after a write looks like the file before the later writes, like any append-only log.
+ * <p/>
+ * every frame carry the id of it's key, so content encrypted by old keys is still readable after key rotation,
+ * call {@link #startKeyRotation()} to re-encrypt old content with the current key in background.
+ * <p/>
+ * frame format: [key id length (1 byte)][key id][frame index (4 bytes)][flags (1 byte)][plain length (4 bytes)]
+ * [nonce (12 bytes)][cipher text + tag (plain length + 16 bytes)], the header before nonce is authenticated
+ * by {@link Cipher#updateAAD(byte[])}.
+ * <p/>
+ * require api 19, which add {@link GCMParameterSpec} and {@link Cipher#updateAAD(byte[])}, the constructor
+ * throws {@link IllegalStateException} if they are missing.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class AesGcmFileStorage extends FileStorage {
+  public static final int DEFAULT_FRAME_SIZE = 4 * 1024;
+
+  private final static String STORAGE_FILE_PREFIX = "gcm_file_storage_";
+  private final static String BACKUP_STORAGE_FILE_PREFIX = "backup_gcm_file_storage_";
+  private final static String ROTATING_FILE_PREFIX = "rotating_";
+  private final static String TRANSFORMATION = "AES/GCM/NoPadding";
+  private final static int NONCE_LENGTH = 12;
+  private final static int TAG_LENGTH = 16;
+  private final static int MAX_FRAME_SIZE = 1024 * 1024;
+  private final static int FLAG_LAST_FRAME = 1;
+
+  private final KeyProvider keyProvider;
+  private final int frameSize;
+  private final SecureRandom secureRandom = new SecureRandom();
+
+  private final Object rotationLock = new Object();
+  private boolean rotationRunning;
+  private Iterator<File> rotationFiles;
+  // quarantined files have no key, they are re-encrypted and cleared under this lock
+  private final Object quarantineLock = new Object();
+
+  public AesGcmFileStorage(String storageDirPath, int storageVersion, KeyProvider keyProvider) {
+    this(storageDirPath, storageVersion, keyProvider, DEFAULT_FRAME_SIZE);
+  }
+
+  public AesGcmFileStorage(String storageDirPath, int storageVersion, KeyProvider keyProvider, int frameSize,
+                           Migration... migrations) {
+    this(storageDirPath, storageVersion, keyProvider, frameSize, false, migrations);
+  }
+
+  public AesGcmFileStorage(String storageDirPath, int storageVersion, KeyProvider keyProvider, int frameSize,
+                           boolean sharded, Migration... migrations) {
+    super(checkGcmSupported(storageDirPath), storageVersion, sharded, migrations);
+    if (keyProvider == null) {
+      throw new IllegalArgumentException("keyProvider can't be null");
+    }
+    if (frameSize <= 0 || frameSize > MAX_FRAME_SIZE) {
+      throw new IllegalArgumentException("frameSize must in (0, " + MAX_FRAME_SIZE + "]");
+    }
+    this.keyProvider = keyProvider;
+    this.frameSize = frameSize;
+  }
+
+  private static String checkGcmSupported(String storageDirPath) {
+    // checked before FileStorage touch the storage dir, GCMParameterSpec and updateAAD come together in api 19
+    try {
+      Class.forName("javax.crypto.spec.GCMParameterSpec");
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(AesGcmFileStorage.class.getSimpleName() + " require api 19", e);
+    }
+    return storageDirPath;
+  }
+
+  @Override
+  protected String getStorageFilePrefix() {
+    return STORAGE_FILE_PREFIX;
+  }
+
+  @Override
+  protected String getBackupStorageFilePrefix() {
+    return BACKUP_STORAGE_FILE_PREFIX;
+  }
+
+  @Override
+  public boolean append(String key, String content) {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    if (file == null || content == null) {
+      return false;
+    }
+    synchronized (getFileLock(key)) {
+      OutputStream outputStream = null;
+      try {
+        outputStream = openFrameOutputStream(file);
+        outputStream.write(content.getBytes(IOUtils.DEFAULT_ENCODING));
+        outputStream.close();
+        return true;
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        IOUtils.close(outputStream);
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String get(String key) {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    synchronized (getFileLock(key)) {
+      if (file == null || !file.exists()) {
+        return null;
+      }
+      try {
+        return IOUtils.readString(new FrameDecryptInputStream(new FileInputStream(file)), IOUtils.DEFAULT_ENCODING);
+      } catch (FrameCorruptedException e) {
+        e.printStackTrace();
+        quarantine(key);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * scan frame headers only, the authentication tags are verified when read
+   */
+  @Override
+  public boolean check(String key) {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    synchronized (getFileLock(key)) {
+      if (file == null || !file.exists()) {
+        return false;
+      }
+      try {
+        return scanFrames(file).complete;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * open a stream to read the decrypted content of key, frames are decrypted one by one while reading,
+   * the caller must close the stream, and should not write the same key before the stream closed
+   *
+   * @param key the key
+   * @return the stream, or null if key not exist
+   * @throws IOException if open file failed
+   */
+  public InputStream openInputStream(String key) throws IOException {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    if (file == null || !file.exists()) {
+      return null;
+    }
+    return new FrameDecryptInputStream(new FileInputStream(file));
+  }
+
+  /**
+   * open a stream to append content to key, content is encrypted frame by frame while writing,
+   * the caller must close the stream to flush the last frame
+   *
+   * @param key the key
+   * @return the stream
+   * @throws IOException if open file failed
+   */
+  public OutputStream openOutputStream(String key) throws IOException {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    if (file == null) {
+      throw new IOException("invalid key: " + key);
+    }
+    return openFrameOutputStream(file);
+  }
+
+  /**
+   * the frames of a write continue the numbers of the complete writes in file, a write torn by crash is cut
+   * off first, or its frames would be taken as the frames of this write
+   */
+  private OutputStream openFrameOutputStream(File file) throws IOException {
+    makeParentDirs(file);
+    int nextIndex = 0;
+    if (file.exists()) {
+      FrameScan scan = scanFrames(file);
+      if (scan.completeLength < file.length()) {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+          randomAccessFile.setLength(scan.completeLength);
+        } finally {
+          IOUtils.close(randomAccessFile);
+        }
+      }
+      nextIndex = scan.completeCount;
+    }
+    return new FrameEncryptOutputStream(new FileOutputStream(file, true), nextIndex);
+  }
+
+  /**
+   * start re-encrypt the content which not encrypted by {@link KeyProvider#getCurrentKeyId()} in background,
+   * include the backup and quarantined files, the work is split into small time slices on a low priority thread,
+   * every file is re-encrypted under it's file lock, so read and write of storage are never blocked for long.
+   * the files can't be decrypted are kept with their old keys, check {@link #isKeyInUse(String)} before drop
+   * an old key
+   */
+  public void startKeyRotation() {
+    synchronized (rotationLock) {
+      if (rotationRunning) {
+        return;
+      }
+      rotationRunning = true;
+      rotationFiles = null;
+    }
+    scheduleRotationSlice(0);
+  }
+
+  /**
+   * whether the key rotation started by {@link #startKeyRotation()} is still running,
+   * the old keys must keep available in {@link KeyProvider} until rotation finished
+   *
+   * @return is running
+   */
+  public boolean isKeyRotationRunning() {
+    synchronized (rotationLock) {
+      return rotationRunning;
+    }
+  }
+
+  /**
+   * the max duration of one key rotation time slice
+   *
+   * @return duration in millis
+   */
+  protected long rotationSliceMillis() {
+    return 50;
+  }
+
+  /**
+   * the pause duration between key rotation time slices
+   *
+   * @return duration in millis
+   */
+  protected long rotationIntervalMillis() {
+    return 500;
+  }
+
+  private void scheduleRotationSlice(long delay) {
+    ScheduledExecutorService executor = ExecutorFactory.getLowPriorityExecutor();
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        rotateSlice();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void rotateSlice() {
+    boolean finished = true;
+    try {
+      long sliceEnd = System.currentTimeMillis() + rotationSliceMillis();
+      Iterator<File> files;
+      synchronized (rotationLock) {
+        if (rotationFiles == null) {
+          clearRotatingFiles();
+          rotationFiles = listEncryptedFiles().iterator();
+        }
+        files = rotationFiles;
+      }
+      while (files.hasNext() && System.currentTimeMillis() < sliceEnd) {
+        reEncrypt(files.next());
+      }
+      if (files.hasNext()) {
+        scheduleRotationSlice(rotationIntervalMillis());
+        finished = false;
+      }
+    } finally {
+      // also stop on unexpected exception, so rotation can be started again
+      if (finished) {
+        synchronized (rotationLock) {
+          rotationFiles = null;
+          rotationRunning = false;
+        }
+      }
+    }
+  }
+
+  private void clearRotatingFiles() {
+    for (File file : listStorageFiles()) {
+      if (file.getName().startsWith(ROTATING_FILE_PREFIX)) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * whether any file of storage, include the backup and quarantined files, still has frames encrypted by the key,
+   * a key can be dropped from {@link KeyProvider} only when it's not in use and no key rotation is running
+   *
+   * @param keyId the key id
+   * @return is in use
+   */
+  public boolean isKeyInUse(String keyId) {
+    for (File file : listEncryptedFiles()) {
+      synchronized (getLock(file)) {
+        try {
+          if (file.exists() && scanFrames(file).keyIds.contains(keyId)) {
+            return true;
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+          // can't tell, keep the key
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void clearQuarantine() {
+    synchronized (quarantineLock) {
+      super.clearQuarantine();
+    }
+  }
+
+  /**
+   * list the live, backup and quarantined files
+   */
+  private List<File> listEncryptedFiles() {
+    List<File> files = new ArrayList<>();
+    for (File file : listStorageFiles()) {
+      if (file.getName().startsWith(STORAGE_FILE_PREFIX) || file.getName().startsWith(BACKUP_STORAGE_FILE_PREFIX)) {
+        files.add(file);
+      }
+    }
+    files.addAll(getQuarantinedFiles());
+    return files;
+  }
+
+  /**
+   * the file name is prefix + key, see {@link #getStorageFile(String)} and {@link #getBackupStorageFile(String)}
+   */
+  private Object getLock(File file) {
+    String name = file.getName();
+    if (name.startsWith(STORAGE_FILE_PREFIX)) {
+      return getFileLock(name.substring(STORAGE_FILE_PREFIX.length()));
+    } else if (name.startsWith(BACKUP_STORAGE_FILE_PREFIX)) {
+      return getBackupFileLock(name.substring(BACKUP_STORAGE_FILE_PREFIX.length()));
+    }
+    return quarantineLock;
+  }
+
+  private void reEncrypt(File file) {
+    String currentKeyId = keyProvider.getCurrentKeyId();
+    synchronized (getLock(file)) {
+      if (!file.exists()) {
+        return;
+      }
+      File rotatingFile = new File(file.getParentFile(), ROTATING_FILE_PREFIX + file.getName());
+      InputStream inputStream = null;
+      OutputStream outputStream = null;
+      try {
+        if (isEncryptedBy(file, currentKeyId)) {
+          return;
+        }
+        inputStream = new FrameDecryptInputStream(new FileInputStream(file));
+        outputStream = new FrameEncryptOutputStream(new FileOutputStream(rotatingFile), 0);
+        byte[] buffer = new byte[frameSize];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+          outputStream.write(buffer, 0, count);
+        }
+        outputStream.close();
+        if (!rotatingFile.renameTo(file)) {
+          rotatingFile.delete();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        rotatingFile.delete();
+      } finally {
+        IOUtils.close(inputStream);
+        IOUtils.close(outputStream);
+      }
+    }
+  }
+
+  /**
+   * scan frame headers only, check whether all frames of file are encrypted by the key id
+   */
+  private boolean isEncryptedBy(File file, String keyId) throws IOException {
+    for (String frameKeyId : scanFrames(file).keyIds) {
+      if (!frameKeyId.equals(keyId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * read the frame headers of file and skip the cipher text, the frames after the first broken one are not read
+   */
+  private static FrameScan scanFrames(File file) throws IOException {
+    FrameScan scan = new FrameScan();
+    // skip may go beyond the end of file, so the frame ends are checked against file length
+    long length = file.length();
+    long position = 0;
+    int count = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (position < length) {
+        FrameHeader header;
+        try {
+          header = FrameHeader.read(in);
+        } catch (IOException e) {
+          break;
+        }
+        if (header == null || header.index != count || position + header.length() > length) {
+          break;
+        }
+        int skip = NONCE_LENGTH + header.plainLength + TAG_LENGTH;
+        if (in.skipBytes(skip) != skip) {
+          break;
+        }
+        position += header.length();
+        count++;
+        scan.keyIds.add(header.keyId());
+        if (header.last) {
+          scan.completeLength = position;
+          scan.completeCount = count;
+        }
+      }
+    } finally {
+      IOUtils.close(in);
+    }
+    scan.complete = scan.completeLength == length;
+    return scan;
+  }
+
+  protected AlgorithmParameterSpec createParameterSpec(byte[] nonce) {
+    return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+  }
+
+  private Cipher initCipher(int mode, FrameHeader header, byte[] nonce) throws IOException {
+    String keyId = header.keyId();
+    SecretKey key = keyProvider.getKey(keyId);
+    if (key == null) {
+      throw new IOException("can't find key: " + keyId);
+    }
+    try {
+      Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+      cipher.init(mode, key, createParameterSpec(nonce));
+      // authenticate the frame header, so key id, frame position and length can't be tampered
+      cipher.updateAAD(header.toBytes());
+      return cipher;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static class FrameHeader {
+    private final byte[] keyIdBytes;
+    private final int index;
+    private final boolean last;
+    private final int plainLength;
+
+    FrameHeader(byte[] keyIdBytes, int index, boolean last, int plainLength) {
+      this.keyIdBytes = keyIdBytes;
+      this.index = index;
+      this.last = last;
+      this.plainLength = plainLength;
+    }
+
+    /**
+     * @return the header, null if no more frame
+     * @throws FrameCorruptedException if the header is truncated or invalid
+     */
+    static FrameHeader read(DataInputStream in) throws IOException {
+      int keyIdLength = in.read();
+      if (keyIdLength == -1) {
+        return null;
+      }
+      try {
+        byte[] keyIdBytes = new byte[keyIdLength];
+        in.readFully(keyIdBytes);
+        int index = in.readInt();
+        int flags = in.readUnsignedByte();
+        int plainLength = in.readInt();
+        if (plainLength <= 0 || plainLength > MAX_FRAME_SIZE || (flags & ~FLAG_LAST_FRAME) != 0) {
+          throw new FrameCorruptedException("corrupted frame header", null);
+        }
+        return new FrameHeader(keyIdBytes, index, (flags & FLAG_LAST_FRAME) != 0, plainLength);
+      } catch (EOFException e) {
+        throw new FrameCorruptedException("truncated frame", e);
+      }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(keyIdBytes.length);
+      out.write(keyIdBytes);
+      out.writeInt(index);
+      out.writeByte(last ? FLAG_LAST_FRAME : 0);
+      out.writeInt(plainLength);
+    }
+
+    byte[] toBytes() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(keyIdBytes.length + 10);
+      write(new DataOutputStream(bytes));
+      return bytes.toByteArray();
+    }
+
+    String keyId() throws IOException {
+      return new String(keyIdBytes, IOUtils.DEFAULT_ENCODING);
+    }
+
+    /**
+     * @return the length of whole frame in file
+     */
+    long length() {
+      return 1 + keyIdBytes.length + 4 + 1 + 4 + NONCE_LENGTH + plainLength + TAG_LENGTH;
+    }
+  }
+
+  private static class FrameScan {
+    private final List<String> keyIds = new ArrayList<>();
+    // the end and frame count of the last complete write
+    private long completeLength;
+    private int completeCount;
+    private boolean complete;
+  }
+
+  private class FrameEncryptOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte[] frame = new byte[frameSize];
+    private final byte[] keyIdBytes;
+    private int frameLength;
+    private int frameIndex;
+    private boolean closed;
+
+    FrameEncryptOutputStream(OutputStream out, int firstIndex) throws IOException {
+      frameIndex = firstIndex;
+      this.out = new DataOutputStream(new BufferedOutputStream(out, frameSize + NONCE_LENGTH + TAG_LENGTH + 4));
+      String keyId = keyProvider.getCurrentKeyId();
+      keyIdBytes = keyId == null ? null : keyId.getBytes(IOUtils.DEFAULT_ENCODING);
+      if (keyIdBytes == null || keyIdBytes.length > 255) {
+        IOUtils.close(out);
+        throw new IOException("invalid key id: " + keyId);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        // a full frame is written only when more content comes, so the last frame is known on close
+        if (frameLength == frameSize) {
+          writeFrame(false);
+        }
+        int count = Math.min(len, frameSize - frameLength);
+        System.arraycopy(b, off, frame, frameLength, count);
+        frameLength += count;
+        off += count;
+        len -= count;
+      }
+    }
+
+    private void writeFrame(boolean last) throws IOException {
+      if (frameLength <= 0) {
+        return;
+      }
+      FrameHeader header = new FrameHeader(keyIdBytes, frameIndex, last, frameLength);
+      byte[] nonce = new byte[NONCE_LENGTH];
+      secureRandom.nextBytes(nonce);
+      Cipher cipher = initCipher(Cipher.ENCRYPT_MODE, header, nonce);
+      byte[] encrypted;
+      try {
+        encrypted = cipher.doFinal(frame, 0, frameLength);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      header.write(out);
+      out.write(nonce);
+      out.write(encrypted);
+      frameLength = 0;
+      frameIndex++;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        writeFrame(true);
+        out.flush();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private class FrameDecryptInputStream extends InputStream {
+    private final DataInputStream in;
+    private byte[] frame;
+    private int position;
+    private int frameIndex;
+    private boolean lastRead = true;
+
+    FrameDecryptInputStream(InputStream in) {
+      this.in = new DataInputStream(new BufferedInputStream(in, frameSize + NONCE_LENGTH + TAG_LENGTH + 4));
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if ((frame == null || position >= frame.length) && !readFrame()) {
+        return -1;
+      }
+      int count = Math.min(len, frame.length - position);
+      System.arraycopy(frame, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    private boolean readFrame() throws IOException {
+      FrameHeader header = FrameHeader.read(in);
+      if (header == null) {
+        if (!lastRead) {
+          throw new FrameCorruptedException("truncated write", null);
+        }
+        return false;
+      }
+      if (header.index != frameIndex) {
+        throw new FrameCorruptedException("expect frame " + frameIndex + " but got " + header.index, null);
+      }
+      byte[] nonce = new byte[NONCE_LENGTH];
+      byte[] encrypted = new byte[header.plainLength + TAG_LENGTH];
+      try {
+        in.readFully(nonce);
+        in.readFully(encrypted);
+      } catch (EOFException e) {
+        throw new FrameCorruptedException("truncated frame", e);
+      }
+      Cipher cipher = initCipher(Cipher.DECRYPT_MODE, header, nonce);
+      try {
+        frame = cipher.doFinal(encrypted);
+      } catch (GeneralSecurityException e) {
+        throw new FrameCorruptedException("frame authentication failed", e);
+      }
+      position = 0;
+      frameIndex++;
+      lastRead = header.last;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class FrameCorruptedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    FrameCorruptedException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import me.touko.core.storage.AsyncStorage.Callback;
+import me.touko.core.utils.KeyedExecutor;
+
+/**
+ * a async facade of {@link ObjStorage}, see {@link AsyncStorage}
+ */
+public class AsyncObjStorage<T> {
+  private final ObjStorage<T> objStorage;
+  private final KeyedExecutor keyedExecutor;
+
+  public AsyncObjStorage(ObjStorage<T> objStorage, Executor ioExecutor) {
+    this(objStorage, new KeyedExecutor(ioExecutor));
+  }
+
+  public AsyncObjStorage(ObjStorage<T> objStorage, KeyedExecutor keyedExecutor) {
+    if (objStorage == null) {
+      throw new IllegalArgumentException("objStorage can't be null");
+    }
+    this.objStorage = objStorage;
+    this.keyedExecutor = keyedExecutor;
+  }
+
+  public Future<Boolean> put(final String key, final T t, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.put(key, t);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> delete(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.delete(key);
+      }
+    }, callback);
+  }
+
+  /**
+   * rename srcKey to targetKey, run after all earlier operations of both keys
+   */
+  public Future<Boolean> rename(final String srcKey, final String targetKey, Callback<Boolean> callback) {
+    return execute(Arrays.asList(srcKey, targetKey), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.rename(srcKey, targetKey);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> has(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.has(key);
+      }
+    }, callback);
+  }
+
+  public Future<List<T>> get(final String key, Callback<List<T>> callback) {
+    return execute(Collections.singleton(key), new Callable<List<T>>() {
+      @Override
+      public List<T> call() throws Exception {
+        return objStorage.get(key);
+      }
+    }, callback);
+  }
+
+  public Future<T> getFirst(final String key, Callback<T> callback) {
+    return execute(Collections.singleton(key), new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return objStorage.getFirst(key);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> check(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.check(key);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> quarantine(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return objStorage.quarantine(key);
+      }
+    }, callback);
+  }
+
+  /**
+   * get all keys, not ordered with the pending operations of any key
+   */
+  public Future<Set<String>> getKeys(Callback<Set<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Set<String>>() {
+      @Override
+      public Set<String> call() throws Exception {
+        return objStorage.getKeys();
+      }
+    }, callback);
+  }
+
+  /**
+   * iterate the keys start with prefix, not ordered with the pending operations of any key
+   */
+  public Future<Iterator<String>> scanPrefix(final String prefix, Callback<Iterator<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Iterator<String>>() {
+      @Override
+      public Iterator<String> call() throws Exception {
+        return objStorage.scanPrefix(prefix);
+      }
+    }, callback);
+  }
+
+  /**
+   * iterate the keys in [fromKey, toKey), not ordered with the pending operations of any key
+   */
+  public Future<Iterator<String>> scanRange(final String fromKey, final String toKey,
+                                            Callback<Iterator<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Iterator<String>>() {
+      @Override
+      public Iterator<String> call() throws Exception {
+        return objStorage.scanRange(fromKey, toKey);
+      }
+    }, callback);
+  }
+
+  /**
+   * run a composite operation on the io executor, after all earlier operations of the keys
+   *
+   * @param keys the keys used by the operation
+   * @param callable the operation
+   * @param callback the callback, can be null
+   * @return the future of result
+   */
+  public <V> Future<V> execute(Collection<String> keys, Callable<V> callable, Callback<V> callback) {
+    return AsyncStorage.submit(keyedExecutor, keys, callable, callback);
+  }
+
+  /**
+   * get the wrapped ObjStorage
+   *
+   * @return ObjStorage
+   */
+  public ObjStorage<T> getObjStorage() {
+    return objStorage;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import me.touko.core.utils.KeyedExecutor;
+import me.touko.core.utils.StorageUtils;
+
+/**
+ * a async facade of {@link Storage}, every method run on the io executor and return a {@link Future},
+ * operations of the same key run in call order, so caller can submit several reads and writes of a key
+ * without waiting, operations of different keys run in parallel.
+ * <p/>
+ * the callback is invoked on the io thread, and can be null.
+ */
+public class AsyncStorage {
+  private final Storage storage;
+  private final KeyedExecutor keyedExecutor;
+
+  /**
+   * the callback to receive the result of a async operation
+   *
+   * @param <V> the result type
+   */
+  public interface Callback<V> {
+    void onResult(V result);
+  }
+
+  public AsyncStorage(Storage storage, Executor ioExecutor) {
+    this(storage, new KeyedExecutor(ioExecutor));
+  }
+
+  public AsyncStorage(Storage storage, KeyedExecutor keyedExecutor) {
+    if (storage == null) {
+      throw new IllegalArgumentException("storage can't be null");
+    }
+    this.storage = storage;
+    this.keyedExecutor = keyedExecutor;
+  }
+
+  public Future<Boolean> put(final String key, final String content, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return storage.put(key, content);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> append(final String key, final String content, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return storage.append(key, content);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> delete(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return storage.delete(key);
+      }
+    }, callback);
+  }
+
+  /**
+   * rename srcKey to targetKey, run after all earlier operations of both keys
+   */
+  public Future<Boolean> rename(final String srcKey, final String targetKey, Callback<Boolean> callback) {
+    return execute(Arrays.asList(srcKey, targetKey), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return storage.rename(srcKey, targetKey);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> has(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return storage.has(key);
+      }
+    }, callback);
+  }
+
+  public Future<String> get(final String key, Callback<String> callback) {
+    return execute(Collections.singleton(key), new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return storage.get(key);
+      }
+    }, callback);
+  }
+
+  public Future<Long> size(final String key, Callback<Long> callback) {
+    return execute(Collections.singleton(key), new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return storage.size(key);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> check(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return StorageUtils.check(storage, key);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> quarantine(final String key, Callback<Boolean> callback) {
+    return execute(Collections.singleton(key), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return StorageUtils.quarantine(storage, key);
+      }
+    }, callback);
+  }
+
+  /**
+   * get all keys, not ordered with the pending operations of any key
+   */
+  public Future<Set<String>> getKeys(Callback<Set<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Set<String>>() {
+      @Override
+      public Set<String> call() throws Exception {
+        return storage.getKeys();
+      }
+    }, callback);
+  }
+
+  /**
+   * iterate the keys start with prefix, not ordered with the pending operations of any key
+   */
+  public Future<Iterator<String>> scanPrefix(final String prefix, Callback<Iterator<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Iterator<String>>() {
+      @Override
+      public Iterator<String> call() throws Exception {
+        return StorageUtils.scanPrefix(storage, prefix);
+      }
+    }, callback);
+  }
+
+  /**
+   * iterate the keys in [fromKey, toKey), not ordered with the pending operations of any key
+   */
+  public Future<Iterator<String>> scanRange(final String fromKey, final String toKey,
+                                            Callback<Iterator<String>> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Iterator<String>>() {
+      @Override
+      public Iterator<String> call() throws Exception {
+        return StorageUtils.scanRange(storage, fromKey, toKey);
+      }
+    }, callback);
+  }
+
+  /**
+   * clear storage, not ordered with the pending operations of any key
+   */
+  public Future<Void> clear(Callback<Void> callback) {
+    return execute(Collections.<String>emptySet(), new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        storage.clear();
+        return null;
+      }
+    }, callback);
+  }
+
+  /**
+   * run a composite operation on the io executor, after all earlier operations of the keys
+   *
+   * @param keys the keys used by the operation
+   * @param callable the operation
+   * @param callback the callback, can be null
+   * @return the future of result
+   */
+  public <V> Future<V> execute(Collection<String> keys, Callable<V> callable, final Callback<V> callback) {
+    return submit(keyedExecutor, keys, callable, callback);
+  }
+
+  /**
+   * get the wrapped storage
+   *
+   * @return storage
+   */
+  public Storage getStorage() {
+    return storage;
+  }
+
+  static <V> Future<V> submit(KeyedExecutor keyedExecutor, Collection<String> keys, Callable<V> callable,
+                              final Callback<V> callback) {
+    FutureTask<V> future = new FutureTask<V>(callable) {
+      @Override
+      protected void done() {
+        if (callback == null || isCancelled()) {
+          return;
+        }
+        try {
+          callback.onResult(get());
+        } catch (InterruptedException | ExecutionException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    keyedExecutor.execute(keys, future);
+    return future;
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import me.touko.core.utils.Base64Utils;
+import me.touko.core.utils.IOUtils;
+import me.touko.core.utils.StorageUtils;
+import me.touko.core.utils.StringUtils;
+
+/**
+ * a storage decorator which compress content with deflate before write to the wrapped storage,
+ * content smaller than the threshold is stored as it is, keys are not changed, so
+ * {@link #getKeys()}, {@link #rename(String, String)} and {@link #delete(String)} behave same as the wrapped storage.
+ * <p/>
+ * every put or append is stored as one line in the wrapped storage, the first char of line mark how it's encoded:
+ * 0x01 raw content, 0x02 base64 of raw content, 0x03 base64 of zlib compressed content. the marks are
+ * control chars which never start text content, so lines without mark are content written before wrapping,
+ * they are read as they are, an existing storage can be wrapped without migration.
+ */
+public class CompressedStorage implements Storage, VerifiableStorage, ScannableStorage {
+  public static final int DEFAULT_MIN_COMPRESS_SIZE = 256;
+
+  private static final String LINE_FEED = "\n";
+  private static final char MARK_RAW = '\u0001';
+  private static final char MARK_BASE64 = '\u0002';
+  private static final char MARK_DEFLATE = '\u0003';
+  private static final int SHINGLE_LENGTH = 8;
+
+  private final Storage storage;
+  private final int minCompressSize;
+  private final byte[] dictionary;
+
+  private final Stats stats = new Stats();
+
+  public CompressedStorage(Storage storage) {
+    this(storage, DEFAULT_MIN_COMPRESS_SIZE, null);
+  }
+
+  /**
+   * @param storage the storage to wrap
+   * @param minCompressSize content smaller than this byte size will not be compressed
+   * @param dictionary the preset dictionary for deflate, can be null, see {@link #trainDictionary(Collection, int)},
+   *                   content compressed with a dictionary can only be read with the same dictionary
+   */
+  public CompressedStorage(Storage storage, int minCompressSize, byte[] dictionary) {
+    if (storage == null) {
+      throw new IllegalArgumentException("storage can't be null");
+    }
+    this.storage = storage;
+    this.minCompressSize = minCompressSize;
+    this.dictionary = dictionary;
+  }
+
+  @Override
+  public boolean put(String key, String content) {
+    String encoded = encode(content);
+    return encoded != null && storage.put(key, encoded);
+  }
+
+  @Override
+  public boolean append(String key, String content) {
+    String encoded = encode(content);
+    if (encoded == null) {
+      return false;
+    }
+    if (storage.has(key)) {
+      return storage.append(key, LINE_FEED + encoded);
+    } else {
+      return storage.append(key, encoded);
+    }
+  }
+
+  @Override
+  public boolean delete(String key) {
+    return storage.delete(key);
+  }
+
+  @Override
+  public boolean rename(String srcKey, String targetKey) {
+    return storage.rename(srcKey, targetKey);
+  }
+
+  @Override
+  public void clear() {
+    storage.clear();
+  }
+
+  @Override
+  public boolean has(String key) {
+    return storage.has(key);
+  }
+
+  @Override
+  public String get(String key) {
+    String content = storage.get(key);
+    if (StringUtils.isEmpty(content)) {
+      return content;
+    }
+    StringBuilder stringBuilder = new StringBuilder();
+    boolean previousLegacy = false;
+    for (String line : content.split(LINE_FEED, -1)) {
+      if (!isEncoded(line)) {
+        // written before wrapping, keep it's line feeds
+        if (previousLegacy) {
+          stringBuilder.append(LINE_FEED);
+        }
+        stringBuilder.append(line);
+        previousLegacy = true;
+        continue;
+      }
+      String decoded = decode(line);
+      if (decoded == null) {
+        return null;
+      }
+      stringBuilder.append(decoded);
+      previousLegacy = false;
+    }
+    return stringBuilder.toString();
+  }
+
+  @Override
+  public boolean check(String key) {
+    return StorageUtils.check(storage, key);
+  }
+
+  @Override
+  public boolean quarantine(String key) {
+    return StorageUtils.quarantine(storage, key);
+  }
+
+  @Override
+  public long size(String key) {
+    return storage.size(key);
+  }
+
+  @Override
+  public Set<String> getKeys() {
+    return storage.getKeys();
+  }
+
+  @Override
+  public Iterator<String> scanPrefix(String prefix) {
+    return StorageUtils.scanPrefix(storage, prefix);
+  }
+
+  @Override
+  public Iterator<String> scanRange(String fromKey, String toKey) {
+    return StorageUtils.scanRange(storage, fromKey, toKey);
+  }
+
+  @Override
+  public int getVersion() {
+    return storage.getVersion();
+  }
+
+  @Override
+  public File getStorageDir() {
+    return storage.getStorageDir();
+  }
+
+  @Override
+  public void backup(String key) {
+    storage.backup(key);
+  }
+
+  @Override
+  public boolean removeBackup(String key) {
+    return storage.removeBackup(key);
+  }
+
+  @Override
+  public void recover(String key) {
+    storage.recover(key);
+  }
+
+  /**
+   * get the compression stats of content written by this storage
+   *
+   * @return stats
+   */
+  public Stats getStats() {
+    return stats;
+  }
+
+  /**
+   * the wrapped storage
+   *
+   * @return storage
+   */
+  public Storage getStorage() {
+    return storage;
+  }
+
+  private String encode(String content) {
+    if (content == null) {
+      return null;
+    }
+    try {
+      byte[] raw = content.getBytes(IOUtils.DEFAULT_ENCODING);
+      String encoded = null;
+      if (raw.length >= minCompressSize) {
+        encoded = MARK_DEFLATE + Base64Utils.encode(deflate(raw));
+        if (encoded.length() >= raw.length) {
+          encoded = null;
+        }
+      }
+      if (encoded == null) {
+        if (content.contains(LINE_FEED)) {
+          encoded = MARK_BASE64 + Base64Utils.encode(raw);
+        } else {
+          encoded = MARK_RAW + content;
+        }
+        stats.onWrite(raw.length, encoded.length(), false);
+      } else {
+        stats.onWrite(raw.length, encoded.length(), true);
+      }
+      return encoded;
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  private static boolean isEncoded(String line) {
+    if (line.isEmpty()) {
+      return false;
+    }
+    char mark = line.charAt(0);
+    return mark == MARK_RAW || mark == MARK_BASE64 || mark == MARK_DEFLATE;
+  }
+
+  private String decode(String line) {
+    try {
+      switch (line.charAt(0)) {
+        case MARK_RAW:
+          return line.substring(1);
+        case MARK_BASE64:
+          return new String(Base64Utils.decode(line.substring(1)), IOUtils.DEFAULT_ENCODING);
+        case MARK_DEFLATE:
+          return new String(inflate(Base64Utils.decode(line.substring(1))), IOUtils.DEFAULT_ENCODING);
+        default:
+          return null;
+      }
+    } catch (Exception e) {
+      // catch base64 and zlib format exception etc..
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  private byte[] deflate(byte[] raw) {
+    Deflater deflater = new Deflater();
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(raw.length / 2 + 16);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        outputStream.write(buffer, 0, count);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private byte[] inflate(byte[] compressed) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(compressed.length * 4);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0) {
+          if (inflater.needsDictionary()) {
+            if (dictionary == null) {
+              throw new DataFormatException("content compressed with a preset dictionary");
+            }
+            inflater.setDictionary(dictionary);
+          } else if (inflater.needsInput()) {
+            throw new DataFormatException("truncated content");
+          }
+        }
+        outputStream.write(buffer, 0, count);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * build a preset dictionary from sample contents, the substrings shared by most samples are picked,
+   * and the most common ones are put at the end of dictionary, where deflate reference them cheapest
+   *
+   * @param samples the sample contents, like some typical request bodies
+   * @param maxSize the max byte size of dictionary, 32k at most is useful for deflate
+   * @return the dictionary
+   */
+  public static byte[] trainDictionary(Collection<String> samples, int maxSize) {
+    final Map<String, Integer> frequencies = new HashMap<>();
+    for (String sample : samples) {
+      if (sample == null) {
+        continue;
+      }
+      Set<String> shingles = new HashSet<>();
+      for (int i = 0; i + SHINGLE_LENGTH <= sample.length(); i++) {
+        shingles.add(sample.substring(i, i + SHINGLE_LENGTH));
+      }
+      for (String shingle : shingles) {
+        Integer count = frequencies.get(shingle);
+        frequencies.put(shingle, count == null ? 1 : count + 1);
+      }
+    }
+    List<String> candidates = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+      if (entry.getValue() > 1 || samples.size() == 1) {
+        candidates.add(entry.getKey());
+      }
+    }
+    Collections.sort(candidates, new Comparator<String>() {
+      @Override
+      public int compare(String lhs, String rhs) {
+        int result = frequencies.get(rhs).compareTo(frequencies.get(lhs));
+        return result != 0 ? result : lhs.compareTo(rhs);
+      }
+    });
+
+    List<byte[]> picked = new ArrayList<>();
+    int size = 0;
+    for (String candidate : candidates) {
+      byte[] bytes;
+      try {
+        bytes = candidate.getBytes(IOUtils.DEFAULT_ENCODING);
+      } catch (UnsupportedEncodingException e) {
+        continue;
+      }
+      if (size + bytes.length > maxSize) {
+        break;
+      }
+      picked.add(bytes);
+      size += bytes.length;
+    }
+    byte[] dictionary = new byte[size];
+    int position = size;
+    for (byte[] bytes : picked) {
+      position -= bytes.length;
+      System.arraycopy(bytes, 0, dictionary, position, bytes.length);
+    }
+    return dictionary;
+  }
+
+  /**
+   * the compression stats
+   */
+  public static class Stats {
+    private long rawBytes;
+    private long storedBytes;
+    private long compressedCount;
+    private long skippedCount;
+
+    private synchronized void onWrite(long raw, long stored, boolean compressed) {
+      rawBytes += raw;
+      storedBytes += stored;
+      if (compressed) {
+        compressedCount++;
+      } else {
+        skippedCount++;
+      }
+    }
+
+    /**
+     * @return the total byte size of content before compression
+     */
+    public synchronized long getRawBytes() {
+      return rawBytes;
+    }
+
+    /**
+     * @return the total byte size of content written to the wrapped storage
+     */
+    public synchronized long getStoredBytes() {
+      return storedBytes;
+    }
+
+    /**
+     * @return the count of content which is compressed
+     */
+    public synchronized long getCompressedCount() {
+      return compressedCount;
+    }
+
+    /**
+     * @return the count of content which is too small or not compressible
+     */
+    public synchronized long getSkippedCount() {
+      return skippedCount;
+    }
+
+    /**
+     * @return raw bytes / stored bytes, 1 if nothing written
+     */
+    public synchronized double getCompressionRatio() {
+      return storedBytes <= 0 ? 1 : (double) rawBytes / storedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "Stats{rawBytes=" + rawBytes + ", storedBytes=" + storedBytes + ", compressedCount=" + compressedCount
+          + ", skippedCount=" + skippedCount + ", compressionRatio=" + getCompressionRatio() + "}";
+    }
+  }
+}
@@ -16,12 +16,11 @@
 
 package me.touko.core.storage;
 
-import android.text.TextUtils;
-
 import java.io.File;
 import java.io.IOException;
 
 import me.touko.core.utils.IOUtils;
+import me.touko.core.utils.StringUtils;
 
 /**
  * author: zhoulei date: 15/8/27.
@@ -41,7 +40,7 @@ public class ConfigFile {
   }
 
   public synchronized String getConfigValue(final String configName) {
-    if (TextUtils.isEmpty(configName)) {
+    if (StringUtils.isEmpty(configName)) {
       return null;
     }
 
@@ -56,7 +55,7 @@ public class ConfigFile {
       }
       for (String configItem : configItems) {
         ConfigItemModel configItemModel = ConfigItemModel.createFromString(configItem);
-        if (configItemModel == null || TextUtils.isEmpty(configItemModel.name)) {
+        if (configItemModel == null || StringUtils.isEmpty(configItemModel.name)) {
           continue;
         }
         if (configItemModel.name.equals(configName)) {
@@ -70,7 +69,7 @@ public class ConfigFile {
   }
 
   public synchronized boolean putConfigValue(final String configName, final String value) {
-    if (TextUtils.isEmpty(configName) || value == null) {
+    if (StringUtils.isEmpty(configName) || value == null) {
       return false;
     }
 
@@ -114,7 +113,7 @@ public class ConfigFile {
       StringBuilder restoreContent = new StringBuilder();
       for (String configItem : configItems) {
         ConfigItemModel configItemModel = ConfigItemModel.createFromString(configItem);
-        if (configItemModel == null || TextUtils.isEmpty(configItemModel.name)) {
+        if (configItemModel == null || StringUtils.isEmpty(configItemModel.name)) {
           continue;
         }
         if (!configItemModel.name.equals(configName)) {
@@ -149,7 +148,7 @@ public class ConfigFile {
     }
 
     public static ConfigItemModel createFromString(String content) {
-      if (TextUtils.isEmpty(content)) {
+      if (StringUtils.isEmpty(content)) {
         return null;
       }
       String[] keyAndValue = content.split(CONFIG_KEY_VALUE_DIVIDER);
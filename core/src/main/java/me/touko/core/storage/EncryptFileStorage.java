@@ -16,7 +16,7 @@
 
 package me.touko.core.storage;
 
-import android.text.TextUtils;
+import me.touko.core.utils.StringUtils;
 
 /**
  * author: zhoulei date: 15/7/13.
@@ -29,6 +29,15 @@ public abstract class EncryptFileStorage extends FileStorage {
     super(storageDirPath, storageVersion);
   }
 
+  public EncryptFileStorage(String storageDirPath, int storageVersion, Migration... migrations) throws Exception {
+    super(storageDirPath, storageVersion, migrations);
+  }
+
+  public EncryptFileStorage(String storageDirPath, int storageVersion, boolean sharded, Migration... migrations)
+      throws Exception {
+    super(storageDirPath, storageVersion, sharded, migrations);
+  }
+
   @Override
   protected String getStorageFilePrefix() {
     return STORAGE_FILE_PREFIX;
@@ -51,7 +60,7 @@ public abstract class EncryptFileStorage extends FileStorage {
   @Override
   public String get(String key) {
     String content = super.get(key);
-    if (TextUtils.isEmpty(content)) {
+    if (StringUtils.isEmpty(content)) {
       return null;
     }
     String[] encryptContents = content.split(LINE_FEED);
@@ -16,40 +16,116 @@
 
 package me.touko.core.storage;
 
-import android.text.TextUtils;
-
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+import me.touko.core.utils.ExecutorFactory;
 import me.touko.core.utils.FileUtil;
 import me.touko.core.utils.IOUtils;
 import me.touko.core.utils.NumberParseUtils;
+import me.touko.core.utils.StringUtils;
 
 /**
+ * every put or append is written as a frame: [0xF5][payload length (4 bytes)][crc32 of payload (4 bytes)][payload],
+ * so a torn or corrupted write can be found by {@link #check(String)} without decoding the content. the frames after
+ * a torn or corrupted one are cut off and moved to quarantine, like the tail of any append-only log, the content is
+ * moved to quarantine as a whole only if it's first frame is broken. files written before framing are read as they are.
+ * <p/>
  * author: zhoulei date: 15/7/13.
  */
-public class FileStorage implements Storage {
+public class FileStorage implements Storage, VerifiableStorage, ScannableStorage {
   private File storageDir;
   private ConfigFile configFile;
 
   private final Map<String, Object> fileLockMap = new HashMap<>();
   private final Map<String, Object> backupFileLockMap = new HashMap<>();
+  // whether the file of key is framed, checked once per key, see checkFramed
+  private final Map<String, Boolean> framedMap = new HashMap<>();
 
   private final int storageVersion;
+  private final boolean sharded;
+
+  private final List<Migration> migrationChain = new ArrayList<>();
+  private volatile boolean migrating;
+  private boolean backgroundMigrationScheduled;
+  private final ThreadLocal<Boolean> inMigration = new ThreadLocal<>();
 
   private final static String STORAGE_CONFIG_FILE_NAME = "private_file_storage_config";
   private final static String STORAGE_CONFIG_ITEM_VERSION = "version";
+  private final static String STORAGE_CONFIG_ITEM_MIGRATION_FROM = "migration_from";
+  private final static String STORAGE_CONFIG_ITEM_LAYOUT = "layout";
+  private final static String STORAGE_LAYOUT_FLAT = "flat";
+  private final static String STORAGE_LAYOUT_SHARDED = "sharded";
+  private final static int SHARD_NAME_LENGTH = 2;
   private final static String STORAGE_FILE_PREFIX = "file_storage_";
   private final static String BACKUP_STORAGE_FILE_PREFIX = "backup_file_storage_";
+  private final static String QUARANTINE_FILE_PREFIX = "quarantine_";
+  // 0xF5 never start a utf-8 string, so framed files can be told from files written before framing
+  private final static int FRAME_MAGIC = 0xF5;
+  private final static int FRAME_HEADER_LENGTH = 9;
+  private final static String LEGACY_KEY_PREFIX = "~legacy~";
+  private final static String MIGRATED_KEY_PREFIX = "~migrated~";
+  private final static long MIGRATION_SLICE_MILLIS = 50;
+  private final static long MIGRATION_INTERVAL_MILLIS = 200;
 
   public FileStorage(String storageDirPath, int version) {
+    this(storageDirPath, version, new Migration[0]);
+  }
+
+  /**
+   * create a FileStorage, if the stored version not equals version, the content is migrated by the migrations
+   * from stored version to version instead of cleared, content not migrated yet is migrated when it's key is
+   * accessed, and the rest is migrated in background. the content not migrated yet is kept under legacy keys,
+   * so migration is resumed from them after process restart. if no migration chain found, storage will be cleared.
+   *
+   * @param storageDirPath the storage dir
+   * @param version the storage version
+   * @param migrations the migration steps, like 1 to 2, 2 to 3
+   */
+  public FileStorage(String storageDirPath, int version, Migration... migrations) {
+    this(storageDirPath, version, false, migrations);
+  }
+
+  /**
+   * create a FileStorage, see {@link #FileStorage(String, int, Migration...)}
+   *
+   * @param storageDirPath the storage dir
+   * @param version the storage version
+   * @param sharded whether store files in two level sub dirs named by the hash of key,
+   *                like storageDir/3f/a0/file_storage_key, instead of all in storage dir, which keep every dir
+   *                small when storage has tens of thousands of keys. the layout of existing files is converted
+   *                once when this value changed.
+   * @param migrations the migration steps, like 1 to 2, 2 to 3
+   */
+  public FileStorage(String storageDirPath, int version, boolean sharded, Migration... migrations) {
     storageDir = new File(storageDirPath);
     configFile = new ConfigFile(storageDir + File.separator + STORAGE_CONFIG_FILE_NAME);
     storageVersion = version;
+    this.sharded = sharded;
 
     if (!storageDir.exists()) {
       if (!storageDir.mkdirs()) {
@@ -57,19 +133,291 @@ public class FileStorage implements Storage {
             FileStorage.class.getSimpleName() + ":can't find or create storage dir");
       }
     }
-    if (!checkStorageVersionValid()) {
+    int storedVersion = getStoredVersion();
+    int migrationFrom = NumberParseUtils.parseInt(configFile.getConfigValue(STORAGE_CONFIG_ITEM_MIGRATION_FROM), -1);
+    if (migrationFrom < 0 && storedVersion >= 0 && storedVersion != version) {
+      migrationFrom = storedVersion;
+    }
+    boolean canMigrate = migrationFrom >= 0 && buildMigrationChain(migrationFrom, migrations);
+    if (!canMigrate && (migrationFrom >= 0 || storedVersion != version)) {
       FileUtil.clearPath(storageDirPath);
       configFile.putConfigValue(STORAGE_CONFIG_ITEM_VERSION, String.valueOf(version));
     }
+
+    checkLayout();
+
+    if (canMigrate) {
+      if (storedVersion != version) {
+        // new migration, or crash while preparing migration, the steps are safe to repeat
+        configFile.putConfigValue(STORAGE_CONFIG_ITEM_MIGRATION_FROM, String.valueOf(migrationFrom));
+        prepareMigration();
+        configFile.putConfigValue(STORAGE_CONFIG_ITEM_VERSION, String.valueOf(version));
+      }
+      migrating = true;
+    }
+  }
+
+  /**
+   * convert the layout of existing files if sharded changed, only file names are changed here, so it's safe
+   * to repeat after crash. if any file can't be moved, the layout is not saved and converted again next time,
+   * files stay where they are
+   */
+  private void checkLayout() {
+    String layout = sharded ? STORAGE_LAYOUT_SHARDED : STORAGE_LAYOUT_FLAT;
+    String storedLayout = configFile.getConfigValue(STORAGE_CONFIG_ITEM_LAYOUT);
+    if (layout.equals(storedLayout) || (storedLayout == null && !sharded)) {
+      return;
+    }
+    boolean converted = true;
+    for (File file : listStorageFiles()) {
+      String fileName = file.getName();
+      File target;
+      if (fileName.startsWith(getStorageFilePrefix())) {
+        target = getStorageFile(fileName.substring(getStorageFilePrefix().length()));
+      } else if (fileName.startsWith(getBackupStorageFilePrefix())) {
+        target = getBackupStorageFile(fileName.substring(getBackupStorageFilePrefix().length()));
+      } else {
+        continue;
+      }
+      if (target != null && !target.equals(file)) {
+        makeParentDirs(target);
+        if (!file.renameTo(target)) {
+          converted = false;
+        }
+      }
+    }
+    if (!sharded) {
+      deleteEmptyShardDirs(storageDir, 2);
+    }
+    if (converted) {
+      configFile.putConfigValue(STORAGE_CONFIG_ITEM_LAYOUT, layout);
+    }
+  }
+
+  /**
+   * delete the shard dirs which are empty after their files moved out, a shard dir with any file left is kept
+   */
+  private static void deleteEmptyShardDirs(File dir, int depth) {
+    File[] files = dir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      if (files[i].isDirectory() && files[i].getName().length() == SHARD_NAME_LENGTH) {
+        if (depth > 1) {
+          deleteEmptyShardDirs(files[i], depth - 1);
+        }
+        // only succeed when it's empty
+        files[i].delete();
+      }
+    }
   }
 
-  private boolean checkStorageVersionValid() {
+  /**
+   * list all files in storage dir, include the files in shard dirs
+   *
+   * @return files
+   */
+  protected List<File> listStorageFiles() {
+    List<File> result = new ArrayList<>();
+    File[] files = storageDir.listFiles();
+    if (files == null) {
+      return result;
+    }
+    for (File file : files) {
+      if (!file.isDirectory()) {
+        result.add(file);
+      } else if (file.getName().length() == SHARD_NAME_LENGTH) {
+        File[] subDirs = file.listFiles();
+        for (int i = 0; subDirs != null && i < subDirs.length; i++) {
+          File[] shardFiles = subDirs[i].listFiles();
+          for (int j = 0; shardFiles != null && j < shardFiles.length; j++) {
+            result.add(shardFiles[j]);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * make sure the parent dir of file exist, the shard dir is created when the first file write to it
+   *
+   * @param file the file to write
+   */
+  protected static void makeParentDirs(File file) {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+  }
+
+  private File getFileInStorageDir(String fileName, String key) {
+    if (!sharded) {
+      return new File(storageDir, fileName);
+    }
+    // fibonacci hashing, spread similar keys like "key1", "key2" to different shards
+    int hash = key.hashCode() * 0x9E3779B9;
+    String first = toShardName(hash >>> 24);
+    String second = toShardName((hash >>> 16) & 0xff);
+    return new File(storageDir, first + File.separator + second + File.separator + fileName);
+  }
+
+  private static String toShardName(int value) {
+    return value < 16 ? "0" + Integer.toHexString(value) : Integer.toHexString(value);
+  }
+
+  private int getStoredVersion() {
     String versionString = configFile.getConfigValue(STORAGE_CONFIG_ITEM_VERSION);
-    if (TextUtils.isEmpty(versionString)) {
-      return false;
+    if (StringUtils.isEmpty(versionString)) {
+      return -1;
+    }
+    return NumberParseUtils.parseInt(versionString, -1);
+  }
+
+  private boolean buildMigrationChain(int from, Migration[] migrations) {
+    migrationChain.clear();
+    int version = from;
+    while (version != storageVersion) {
+      Migration next = null;
+      for (Migration migration : migrations) {
+        if (migration != null && migration.getFrom() == version) {
+          next = migration;
+          break;
+        }
+      }
+      if (next == null || migrationChain.contains(next)) {
+        migrationChain.clear();
+        return false;
+      }
+      migrationChain.add(next);
+      version = next.getTo();
+    }
+    return !migrationChain.isEmpty();
+  }
+
+  /**
+   * rename all content of old version to legacy keys, only file names are changed here,
+   * so it's cheap and safe to repeat after crash
+   */
+  private void prepareMigration() {
+    for (File file : listStorageFiles()) {
+      String fileName = file.getName();
+      if (fileName.startsWith(getStorageFilePrefix())) {
+        String key = fileName.substring(getStorageFilePrefix().length());
+        if (!key.startsWith(LEGACY_KEY_PREFIX)) {
+          File legacyFile = getStorageFile(LEGACY_KEY_PREFIX + key);
+          makeParentDirs(legacyFile);
+          file.renameTo(legacyFile);
+        }
+      }
+    }
+  }
+
+  /**
+   * whether there is content of old version waiting for migration
+   *
+   * @return is migrating
+   */
+  public boolean isMigrating() {
+    return migrating;
+  }
+
+  /**
+   * migrate the content of key if it's not migrated yet, and start background migration if needed
+   */
+  protected void migrateIfNeeded(String key) {
+    if (!migrating || StringUtils.isEmpty(key) || isMigrationKey(key)) {
+      return;
+    }
+    scheduleBackgroundMigration(0);
+    migrateKey(key);
+  }
+
+  private boolean isMigrationKey(String key) {
+    return key.startsWith(LEGACY_KEY_PREFIX) || key.startsWith(MIGRATED_KEY_PREFIX);
+  }
+
+  private void migrateKey(String key) {
+    String legacyKey = LEGACY_KEY_PREFIX + key;
+    String migratedKey = MIGRATED_KEY_PREFIX + key;
+    synchronized (getFileLock(key)) {
+      if (inMigration.get() != null || !getStorageFile(legacyKey).exists()) {
+        return;
+      }
+      inMigration.set(Boolean.TRUE);
+      try {
+        // content written after migration started is newer, keep it
+        if (!has(key)) {
+          String content = get(legacyKey);
+          for (int i = 0; content != null && i < migrationChain.size(); i++) {
+            content = migrationChain.get(i).migrate(key, content);
+          }
+          if (content != null) {
+            delete(migratedKey);
+            if (append(migratedKey, content)) {
+              rename(migratedKey, key);
+            }
+          }
+        }
+        delete(legacyKey);
+      } catch (Exception e) {
+        // a broken legacy content should not break the new storage
+        e.printStackTrace();
+        delete(migratedKey);
+        delete(legacyKey);
+      } finally {
+        inMigration.remove();
+      }
+    }
+  }
+
+  private void scheduleBackgroundMigration(long delay) {
+    synchronized (migrationChain) {
+      if (delay <= 0 && backgroundMigrationScheduled) {
+        return;
+      }
+      backgroundMigrationScheduled = true;
+    }
+    ExecutorFactory.getLowPriorityExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        migrateSlice();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void migrateSlice() {
+    long sliceEnd = System.currentTimeMillis() + MIGRATION_SLICE_MILLIS;
+    Iterator<String> legacyKeys = getLegacyKeys().iterator();
+    while (legacyKeys.hasNext() && System.currentTimeMillis() < sliceEnd) {
+      migrateKey(legacyKeys.next());
+    }
+    if (legacyKeys.hasNext()) {
+      scheduleBackgroundMigration(MIGRATION_INTERVAL_MILLIS);
+    } else {
+      migrating = false;
+      clearMigratedKeys();
+      configFile.removeConfig(STORAGE_CONFIG_ITEM_MIGRATION_FROM);
+    }
+  }
+
+  private Set<String> getLegacyKeys() {
+    Set<String> keys = new HashSet<>();
+    String legacyPrefix = getStorageFilePrefix() + LEGACY_KEY_PREFIX;
+    for (File file : listStorageFiles()) {
+      String fileName = file.getName();
+      if (fileName.startsWith(legacyPrefix)) {
+        keys.add(fileName.substring(legacyPrefix.length()));
+      }
+    }
+    return keys;
+  }
+
+  private void clearMigratedKeys() {
+    String migratedPrefix = getStorageFilePrefix() + MIGRATED_KEY_PREFIX;
+    for (File file : listStorageFiles()) {
+      if (file.getName().startsWith(migratedPrefix)) {
+        file.delete();
+      }
     }
-    int version = NumberParseUtils.parseInt(versionString, -1);
-    return version == storageVersion;
   }
 
   protected String getStorageFilePrefix() {
@@ -82,12 +430,14 @@ public class FileStorage implements Storage {
 
   @Override
   public boolean put(String key, String content) {
+    migrateIfNeeded(key);
     delete(key);
     return append(key, content);
   }
 
   @Override
   public boolean append(String key, String content) {
+    migrateIfNeeded(key);
     File file = getStorageFile(key);
     if (file == null) {
       return false;
@@ -96,18 +446,27 @@ public class FileStorage implements Storage {
     synchronized (getFileLock(key)) {
       if (!file.exists()) {
         try {
+          makeParentDirs(file);
           if (file.createNewFile()) {
-            IOUtils.writeString(content, file);
+            writeFrame(content, file);
+            setFramed(key, true);
             return true;
           }
         } catch (IOException e) {
+          forgetFramed(key);
           e.printStackTrace();
         }
       } else {
         try {
-          IOUtils.writeString(content, file, true);
+          if (checkFramed(key, file)) {
+            writeFrame(content, file);
+          } else {
+            IOUtils.writeString(content, file, true);
+          }
           return true;
         } catch (IOException e) {
+          // the tail may be torn, check again on next access
+          forgetFramed(key);
           e.printStackTrace();
         }
       }
@@ -116,19 +475,194 @@ public class FileStorage implements Storage {
     return false;
   }
 
+  private void writeFrame(String content, File file) throws IOException {
+    byte[] payload = content.getBytes(IOUtils.DEFAULT_ENCODING);
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload);
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_HEADER_LENGTH + payload.length);
+    DataOutputStream dataOutputStream = new DataOutputStream(frame);
+    dataOutputStream.writeByte(FRAME_MAGIC);
+    dataOutputStream.writeInt(payload.length);
+    dataOutputStream.writeInt((int) crc32.getValue());
+    dataOutputStream.write(payload);
+    // write the whole frame in one call, reduce the chance of torn write
+    FileOutputStream outputStream = new FileOutputStream(file, true);
+    try {
+      outputStream.write(frame.toByteArray());
+      outputStream.flush();
+    } finally {
+      IOUtils.close(outputStream);
+    }
+  }
+
+  private static boolean isFramed(File file) throws IOException {
+    if (file.length() <= 0) {
+      return true;
+    }
+    InputStream inputStream = new FileInputStream(file);
+    try {
+      return inputStream.read() == FRAME_MAGIC;
+    } finally {
+      IOUtils.close(inputStream);
+    }
+  }
+
+  /**
+   * whether the file of key is framed, the first byte of file is read only once per key, and a framed file is cut
+   * at the end of it's last complete frame at the same time, so a frame torn by crash doesn't hide the frames
+   * appended after it. must be called under the file lock of key.
+   */
+  private boolean checkFramed(String key, File file) throws IOException {
+    synchronized (framedMap) {
+      Boolean framed = framedMap.get(key);
+      if (framed != null) {
+        return framed;
+      }
+    }
+    boolean framed = isFramed(file);
+    if (framed) {
+      long completeLength = scanFrames(file);
+      if (completeLength < file.length()) {
+        cutTail(key, file, completeLength);
+      }
+    }
+    setFramed(key, framed);
+    return framed;
+  }
+
+  private void setFramed(String key, boolean framed) {
+    synchronized (framedMap) {
+      framedMap.put(key, framed);
+    }
+  }
+
+  private void forgetFramed(String key) {
+    synchronized (framedMap) {
+      framedMap.remove(key);
+    }
+  }
+
+  /**
+   * move the content after length to quarantine, and cut the file at length
+   */
+  private void cutTail(String key, File file, long length) throws IOException {
+    File quarantineFile = getFileInStorageDir(
+        QUARANTINE_FILE_PREFIX + file.getName() + "_" + System.currentTimeMillis(), key);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    FileOutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream(quarantineFile);
+      randomAccessFile.seek(length);
+      byte[] buffer = new byte[8 * 1024];
+      int count;
+      while ((count = randomAccessFile.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, count);
+      }
+      outputStream.flush();
+      randomAccessFile.setLength(length);
+    } finally {
+      IOUtils.close(outputStream);
+      IOUtils.close(randomAccessFile);
+    }
+  }
+
+  /**
+   * read the frame headers only and skip the payloads
+   *
+   * @return the end of the last complete frame
+   */
+  private static long scanFrames(File file) throws IOException {
+    // skip may go beyond the end of file, so the frame ends are checked against file length
+    long fileLength = file.length();
+    long position = 0;
+    DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (position + FRAME_HEADER_LENGTH <= fileLength) {
+        if (inputStream.read() != FRAME_MAGIC) {
+          break;
+        }
+        int length = inputStream.readInt();
+        inputStream.readInt();
+        if (length < 0 || position + FRAME_HEADER_LENGTH + length > fileLength
+            || inputStream.skipBytes(length) != length) {
+          break;
+        }
+        position += FRAME_HEADER_LENGTH + length;
+      }
+    } catch (EOFException e) {
+      // torn frame header
+    } finally {
+      IOUtils.close(inputStream);
+    }
+    return position;
+  }
+
+  /**
+   * read and verify the frames of file until the first broken one
+   *
+   * @param file the file
+   * @param output receive the payload of frames, if null, only verify frames
+   * @return the end of the last complete frame which match it's checksum, equals to file length if all frames are
+   * fine, the payload after it written to output should be dropped
+   */
+  private static long readFrames(File file, ByteArrayOutputStream output) throws IOException {
+    DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    long position = 0;
+    try {
+      byte[] buffer = new byte[8 * 1024];
+      CRC32 crc32 = new CRC32();
+      while (true) {
+        int magic = inputStream.read();
+        if (magic == -1 || magic != FRAME_MAGIC) {
+          return position;
+        }
+        int length = inputStream.readInt();
+        long crc = inputStream.readInt() & 0xffffffffL;
+        if (length < 0) {
+          return position;
+        }
+        int remaining = length;
+        crc32.reset();
+        while (remaining > 0) {
+          int count = inputStream.read(buffer, 0, Math.min(buffer.length, remaining));
+          if (count == -1) {
+            return position;
+          }
+          crc32.update(buffer, 0, count);
+          if (output != null) {
+            output.write(buffer, 0, count);
+          }
+          remaining -= count;
+        }
+        if (crc32.getValue() != crc) {
+          return position;
+        }
+        position += FRAME_HEADER_LENGTH + length;
+      }
+    } catch (EOFException e) {
+      return position;
+    } finally {
+      IOUtils.close(inputStream);
+    }
+  }
+
   @Override
   public boolean delete(String key) {
+    migrateIfNeeded(key);
     File file = getStorageFile(key);
     if (file == null || !file.exists()) {
       return true;
     }
     synchronized (getFileLock(key)) {
+      forgetFramed(key);
       return file.delete();
     }
   }
 
   @Override
   public boolean rename(String srcKey, String targetKey) {
+    migrateIfNeeded(srcKey);
+    migrateIfNeeded(targetKey);
     File file = getStorageFile(srcKey);
     if (file == null || !file.exists()) {
       return true;
@@ -136,7 +670,10 @@ public class FileStorage implements Storage {
     File targetFile = getStorageFile(targetKey);
     synchronized (getFileLock(srcKey)) {
       synchronized (getFileLock(targetKey)) {
+        forgetFramed(srcKey);
+        forgetFramed(targetKey);
         targetFile.deleteOnExit();
+        makeParentDirs(targetFile);
         return file.renameTo(targetFile);
       }
     }
@@ -144,15 +681,12 @@ public class FileStorage implements Storage {
 
   @Override
   public void clear() {
-    File[] files = storageDir.listFiles();
-    if (files.length <= 0) {
-      return;
-    }
-    for (File file : files) {
+    for (File file : listStorageFiles()) {
       String fileName = file.getName();
       if (fileName.startsWith(getStorageFilePrefix())) {
         String key = fileName.substring(getStorageFilePrefix().length());
         synchronized (getFileLock(key)) {
+          forgetFramed(key);
           file.delete();
         }
       }
@@ -161,6 +695,7 @@ public class FileStorage implements Storage {
 
   @Override
   public boolean has(final String key) {
+    migrateIfNeeded(key);
     File file = getStorageFile(key);
     synchronized (getFileLock(key)) {
       return file != null && file.exists();
@@ -169,13 +704,31 @@ public class FileStorage implements Storage {
 
   @Override
   public String get(String key) {
+    migrateIfNeeded(key);
     File storageFile = getStorageFile(key);
     synchronized (getFileLock(key)) {
       if (storageFile == null || !storageFile.exists()) {
         return null;
       }
       try {
-        return IOUtils.readString(storageFile);
+        if (!checkFramed(key, storageFile)) {
+          return IOUtils.readString(storageFile);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) storageFile.length());
+        long completeLength = readFrames(storageFile, output);
+        if (completeLength == storageFile.length()) {
+          return output.toString(IOUtils.DEFAULT_ENCODING);
+        }
+        if (completeLength == 0) {
+          quarantine(key);
+          return null;
+        }
+        // keep the frames before the broken one, read again as the output contains the broken payload
+        cutTail(key, storageFile, completeLength);
+        output.reset();
+        if (readFrames(storageFile, output) == completeLength) {
+          return output.toString(IOUtils.DEFAULT_ENCODING);
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -183,8 +736,67 @@ public class FileStorage implements Storage {
     }
   }
 
+  @Override
+  public boolean check(String key) {
+    migrateIfNeeded(key);
+    File file = getStorageFile(key);
+    synchronized (getFileLock(key)) {
+      if (file == null || !file.exists()) {
+        return false;
+      }
+      try {
+        return !isFramed(file) || readFrames(file, null) == file.length();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public boolean quarantine(String key) {
+    File file = getStorageFile(key);
+    if (file == null) {
+      return false;
+    }
+    synchronized (getFileLock(key)) {
+      if (!file.exists()) {
+        return false;
+      }
+      File quarantineFile = getFileInStorageDir(
+          QUARANTINE_FILE_PREFIX + file.getName() + "_" + System.currentTimeMillis(), key);
+      forgetFramed(key);
+      return file.renameTo(quarantineFile);
+    }
+  }
+
+  /**
+   * get the files moved to quarantine by {@link #quarantine(String)}, keep for inspection
+   *
+   * @return quarantined files
+   */
+  public List<File> getQuarantinedFiles() {
+    List<File> quarantinedFiles = new ArrayList<>();
+    for (File file : listStorageFiles()) {
+      if (file.getName().startsWith(QUARANTINE_FILE_PREFIX + getStorageFilePrefix())) {
+        quarantinedFiles.add(file);
+      }
+    }
+    return quarantinedFiles;
+  }
+
+  /**
+   * delete all quarantined files
+   */
+  public void clearQuarantine() {
+    for (File file : getQuarantinedFiles()) {
+      file.delete();
+    }
+  }
+
   @Override
   public long size(String key) {
+    migrateIfNeeded(key);
     File file = getStorageFile(key);
     synchronized (getFileLock(key)) {
       if (file != null && file.exists()) {
@@ -194,20 +806,170 @@ public class FileStorage implements Storage {
     return 0;
   }
 
+  /**
+   * @return keys in ascending order
+   */
   @Override
   public Set<String> getKeys() {
-    Set<String> keys = new HashSet<>();
-    File[] files = storageDir.listFiles();
-    if (files.length <= 0) {
-      return keys;
+    SortedSet<String> keys = new TreeSet<>();
+    Iterator<String> iterator = new KeyIterator("", null, null);
+    while (iterator.hasNext()) {
+      keys.add(iterator.next());
     }
-    for (File file : files) {
-      String fileName = file.getName();
-      if (fileName.startsWith(getStorageFilePrefix())) {
-        keys.add(fileName.substring(getStorageFilePrefix().length()));
+    return keys;
+  }
+
+  @Override
+  public Iterator<String> scanPrefix(String prefix) {
+    return new KeyIterator(prefix == null ? "" : prefix, null, null);
+  }
+
+  @Override
+  public Iterator<String> scanRange(String fromKey, String toKey) {
+    return new KeyIterator("", fromKey, toKey);
+  }
+
+  /**
+   * iterate the keys start with prefix and in [fromKey, toKey) in ascending order, only file names are listed, the
+   * names not match are filtered before any File object is created. the keys of every dir are sorted, and merged
+   * from all dirs, as keys are spread over shards by hash. a key listed twice during migration, by it's legacy
+   * and new file, is returned once.
+   */
+  private class KeyIterator implements Iterator<String> {
+    private final String prefix;
+    private final String fromKey;
+    private final String toKey;
+    private final String storageFilePrefix;
+    private final FilenameFilter filter;
+    // the dirs are listed on first hasNext, ordered by their current key
+    private PriorityQueue<KeyCursor> cursors;
+    private String last;
+    private String next;
+
+    KeyIterator(String prefix, String fromKey, String toKey) {
+      if (migrating) {
+        scheduleBackgroundMigration(0);
       }
+      this.prefix = prefix;
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      storageFilePrefix = getStorageFilePrefix();
+      final String namePrefix = storageFilePrefix + prefix;
+      final String legacyNamePrefix = storageFilePrefix + LEGACY_KEY_PREFIX + prefix;
+      filter = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.startsWith(namePrefix) || name.startsWith(legacyNamePrefix);
+        }
+      };
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (cursors == null) {
+        cursors = new PriorityQueue<>();
+        if (sharded) {
+          // keys are spread by hash, no shard can be skipped
+          for (File shardDir : listShardDirs(storageDir)) {
+            for (File fileDir : listShardDirs(shardDir)) {
+              addCursor(fileDir);
+            }
+          }
+        } else {
+          addCursor(storageDir);
+        }
+      }
+      while (next == null && !cursors.isEmpty()) {
+        KeyCursor cursor = cursors.poll();
+        String key = cursor.keys[cursor.index++];
+        if (cursor.index < cursor.keys.length) {
+          cursors.add(cursor);
+        }
+        if (!key.equals(last)) {
+          next = key;
+          last = key;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      String key = next;
+      next = null;
+      return key;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void addCursor(File dir) {
+      String[] names = dir.list(filter);
+      if (names == null) {
+        return;
+      }
+      List<String> keys = new ArrayList<>(names.length);
+      for (String name : names) {
+        String key = toKey(name);
+        if (key != null) {
+          keys.add(key);
+        }
+      }
+      if (!keys.isEmpty()) {
+        // sorted by key instead of file name, legacy names sort apart from their keys
+        String[] sortedKeys = keys.toArray(new String[keys.size()]);
+        Arrays.sort(sortedKeys);
+        cursors.add(new KeyCursor(sortedKeys));
+      }
+    }
+
+    /**
+     * @return the key of file name, null if it's not a key in range
+     */
+    private String toKey(String fileName) {
+      String key = fileName.substring(storageFilePrefix.length());
+      if (key.startsWith(LEGACY_KEY_PREFIX)) {
+        key = key.substring(LEGACY_KEY_PREFIX.length());
+      } else if (key.startsWith(MIGRATED_KEY_PREFIX)) {
+        return null;
+      }
+      if (key.startsWith(prefix) && (fromKey == null || key.compareTo(fromKey) >= 0)
+          && (toKey == null || key.compareTo(toKey) < 0)) {
+        return key;
+      }
+      return null;
+    }
+
+    private List<File> listShardDirs(File dir) {
+      List<File> shardDirs = new ArrayList<>();
+      String[] shardNames = dir.list();
+      for (int i = 0; shardNames != null && i < shardNames.length; i++) {
+        if (shardNames[i].length() == SHARD_NAME_LENGTH) {
+          // a file with a shard name can't be listed, it's skipped as an empty dir
+          shardDirs.add(new File(dir, shardNames[i]));
+        }
+      }
+      return shardDirs;
+    }
+  }
+
+  private static class KeyCursor implements Comparable<KeyCursor> {
+    private final String[] keys;
+    private int index;
+
+    KeyCursor(String[] keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    public int compareTo(KeyCursor another) {
+      return keys[index].compareTo(another.keys[another.index]);
     }
-    return keys;
   }
 
   @Override
@@ -222,6 +984,7 @@ public class FileStorage implements Storage {
 
   @Override
   public void backup(String key) {
+    migrateIfNeeded(key);
     if(!has(key)) {
       return;
     }
@@ -229,6 +992,7 @@ public class FileStorage implements Storage {
     File backupFile = getBackupStorageFile(key);
     synchronized (getBackupFileLock(key)) {
       synchronized (getFileLock(key)) {
+        makeParentDirs(backupFile);
         FileUtil.copyFile(srcFile, backupFile);
       }
     }
@@ -248,26 +1012,27 @@ public class FileStorage implements Storage {
     File backupFile = getBackupStorageFile(key);
     synchronized (getBackupFileLock(key)) {
       synchronized (getFileLock(key)) {
+        forgetFramed(key);
         FileUtil.copyFile(backupFile, dstFile);
       }
     }
   }
 
   protected File getStorageFile(final String key) {
-    if (TextUtils.isEmpty(key)) {
+    if (StringUtils.isEmpty(key)) {
       return null;
     }
-    return new File(storageDir + File.separator + getStorageFilePrefix() + key);
+    return getFileInStorageDir(getStorageFilePrefix() + key, key);
   }
 
   protected File getBackupStorageFile(final String key) {
-    if (TextUtils.isEmpty(key)) {
+    if (StringUtils.isEmpty(key)) {
       return null;
     }
-    return new File(storageDir + File.separator + getBackupStorageFilePrefix() + key);
+    return getFileInStorageDir(getBackupStorageFilePrefix() + key, key);
   }
 
-  private Object getFileLock(String key) {
+  protected Object getFileLock(String key) {
     synchronized (fileLockMap) {
       if (!fileLockMap.containsKey(key)) {
         final Object fileLock = new Object();
@@ -278,7 +1043,7 @@ public class FileStorage implements Storage {
     }
   }
 
-  private Object getBackupFileLock(String key) {
+  protected Object getBackupFileLock(String key) {
     synchronized (backupFileLockMap) {
       if (!backupFileLockMap.containsKey(key)) {
         final Object fileLock = new Object();
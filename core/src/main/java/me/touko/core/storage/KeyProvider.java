@@ -0,0 +1,45 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import javax.crypto.SecretKey;
+
+/**
+ * provide the secret keys for {@link AesGcmFileStorage}, every key has a key id which is stored with the
+ * encrypted content, when rotate key, return the new key id in {@link #getCurrentKeyId()} and keep the old
+ * keys available in {@link #getKey(String)} until {@link AesGcmFileStorage#isKeyRotationRunning()} return false
+ * and {@link AesGcmFileStorage#isKeyInUse(String)} return false for the old key
+ * <p/>
+ * the single key method {@code SecretKey getKey()} is replaced by key ids, to keep a provider which has only one
+ * key, extend {@link SingleKeyProvider} instead.
+ */
+public interface KeyProvider {
+  /**
+   * get the id of the key used to encrypt new content, the id must be no longer than 255 bytes in utf-8
+   *
+   * @return the key id
+   */
+  String getCurrentKeyId();
+
+  /**
+   * get the AES key of the key id, must be 128, 192 or 256 bits
+   *
+   * @param keyId the key id
+   * @return the key, or null if the key id is unknown
+   */
+  SecretKey getKey(String keyId);
+}
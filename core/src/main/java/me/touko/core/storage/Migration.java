@@ -0,0 +1,51 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+/**
+ * a migration step to transform the content stored by storage version {@link #getFrom()}
+ * to the content of storage version {@link #getTo()}, see {@link FileStorage#FileStorage(String, int, Migration...)}
+ */
+public abstract class Migration {
+  private final int from;
+  private final int to;
+
+  public Migration(int from, int to) {
+    if (from == to) {
+      throw new IllegalArgumentException("from can't equal to");
+    }
+    this.from = from;
+    this.to = to;
+  }
+
+  public int getFrom() {
+    return from;
+  }
+
+  public int getTo() {
+    return to;
+  }
+
+  /**
+   * transform the content of key, this method may be called on any thread
+   *
+   * @param key the key
+   * @param content the content stored by version {@link #getFrom()}
+   * @return the content for version {@link #getTo()}, or null to drop the content
+   */
+  public abstract String migrate(String key, String content);
+}
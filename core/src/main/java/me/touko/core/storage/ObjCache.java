@@ -0,0 +1,222 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.touko.core.utils.MemoryPressureMonitor;
+
+/**
+ * a LRU cache of decoded objects for {@link ObjStorage}, bounded by entry count and estimated byte size,
+ * see {@link ObjStorage#setCache(ObjCache)}
+ * <p/>
+ * the cached objects are shared by all readers, don't modify them unless put them back to storage.
+ * <p/>
+ * add it to {@link MemoryPressureMonitor} to release cached objects on memory pressure.
+ */
+public class ObjCache<T> implements MemoryPressureMonitor.Listener {
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+  private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxCount;
+  private long maxBytes;
+  private long bytes;
+
+  private long writeCount;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  /**
+   * @param maxCount the max count of cached keys
+   * @param maxBytes the max estimated byte size of cached objects
+   */
+  public ObjCache(int maxCount, long maxBytes) {
+    if (maxCount <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("maxCount and maxBytes must > 0");
+    }
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized List<T> get(String key) {
+    Entry<T> entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.items;
+  }
+
+  /**
+   * the count of writes, used to detect writes happen during a read from storage
+   */
+  synchronized long getWriteCount() {
+    return writeCount;
+  }
+
+  /**
+   * called before write to storage, so reads run during the write are not cached
+   */
+  synchronized void beginWrite() {
+    writeCount++;
+  }
+
+  /**
+   * cache the items read from storage, only if nothing is written since writeCount
+   */
+  synchronized void putIfUnchanged(String key, List<T> items, long contentLength, long writeCount) {
+    if (this.writeCount == writeCount) {
+      putEntry(key, items, contentLength);
+    }
+  }
+
+  synchronized void put(String key, List<T> items, long contentLength) {
+    writeCount++;
+    putEntry(key, items, contentLength);
+  }
+
+  synchronized void remove(String key) {
+    writeCount++;
+    Entry<T> entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.bytes;
+    }
+  }
+
+  synchronized void rename(String srcKey, String targetKey) {
+    writeCount++;
+    Entry<T> target = entries.remove(targetKey);
+    if (target != null) {
+      bytes -= target.bytes;
+    }
+    Entry<T> entry = entries.remove(srcKey);
+    if (entry != null) {
+      entries.put(targetKey, entry);
+    }
+  }
+
+  /**
+   * remove all cached objects
+   */
+  public synchronized void clear() {
+    writeCount++;
+    entries.clear();
+    bytes = 0;
+  }
+
+  /**
+   * change the limits of cache, and evict the least recently used objects over the new limits,
+   * like shrink the cache on low memory
+   *
+   * @param maxCount the max count of cached keys
+   * @param maxBytes the max estimated byte size of cached objects
+   */
+  public synchronized void resize(int maxCount, long maxBytes) {
+    this.maxCount = Math.max(0, maxCount);
+    this.maxBytes = Math.max(0, maxBytes);
+    trim();
+  }
+
+  /**
+   * evict the least recently used objects until the estimated byte size <= targetBytes, limits are not changed
+   *
+   * @param targetBytes the target byte size
+   */
+  public synchronized void trimToBytes(long targetBytes) {
+    Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator();
+    while (bytes > targetBytes && iterator.hasNext()) {
+      bytes -= iterator.next().getValue().bytes;
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  /**
+   * drop half of cache on moderate pressure, all of cache on critical pressure
+   */
+  @Override
+  public void onMemoryPressure(int pressure) {
+    if (pressure >= MemoryPressureMonitor.PRESSURE_CRITICAL) {
+      trimToBytes(0);
+    } else {
+      trimToBytes(getBytes() / 2);
+    }
+  }
+
+  private void putEntry(String key, List<T> items, long contentLength) {
+    Entry<T> entry = new Entry<>(items, contentLength * 2 + ENTRY_OVERHEAD_BYTES);
+    Entry<T> previous = entries.put(key, entry);
+    if (previous != null) {
+      bytes -= previous.bytes;
+    }
+    bytes += entry.bytes;
+    trim();
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator();
+    while ((entries.size() > maxCount || bytes > maxBytes) && iterator.hasNext()) {
+      bytes -= iterator.next().getValue().bytes;
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  public synchronized int getCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated byte size of cached objects, 2 bytes per char of stored content
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ObjCache{count=" + entries.size() + ", bytes=" + bytes + ", hitCount=" + hitCount
+        + ", missCount=" + missCount + ", evictionCount=" + evictionCount + "}";
+  }
+
+  private static class Entry<T> {
+    private final List<T> items;
+    private final long bytes;
+
+    Entry(List<T> items, long bytes) {
+      this.items = items;
+      this.bytes = bytes;
+    }
+  }
+}
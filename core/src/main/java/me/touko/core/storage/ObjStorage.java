@@ -16,14 +16,16 @@
 
 package me.touko.core.storage;
 
-import android.text.TextUtils;
-
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import me.touko.core.utils.CollectionUtils;
+import me.touko.core.utils.StorageUtils;
+import me.touko.core.utils.StringUtils;
 
 /**
  * author: zhou date: 2015/12/23.
@@ -36,6 +38,8 @@ public abstract class ObjStorage<T> {
   private final Storage storage;
   private static final String LINE_FEED = "\n";
 
+  private volatile ObjCache<T> cache;
+
   public ObjStorage(Class<T> tClass, Storage storage) {
     if (storage == null) {
       throw new IllegalArgumentException("storage can't be null");
@@ -52,7 +56,26 @@ public abstract class ObjStorage<T> {
    * @return whether put success
    */
   public boolean put(String key, T t) {
-    return storage.delete(key) && append(key, t);
+    ObjCache<T> cache = this.cache;
+    if (cache == null) {
+      return storage.delete(key) && append(key, t);
+    }
+    cache.beginWrite();
+    if (!storage.delete(key)) {
+      cache.remove(key);
+      return false;
+    }
+    if (t == null) {
+      cache.remove(key);
+      return false;
+    }
+    String content = convertToString(t);
+    if (!storage.append(key, content)) {
+      cache.remove(key);
+      return false;
+    }
+    cache.put(key, Collections.singletonList(t), content.length());
+    return true;
   }
 
   /**
@@ -63,7 +86,12 @@ public abstract class ObjStorage<T> {
    * @return whether put success
    */
   public boolean put(String key, Collection<T> tCollection) {
-    return storage.delete(key) && append(key, tCollection);
+    beginWrite(key);
+    try {
+      return storage.delete(key) && append(key, tCollection);
+    } finally {
+      endWrite(key);
+    }
   }
 
   /**
@@ -78,10 +106,15 @@ public abstract class ObjStorage<T> {
       return false;
     }
 
-    if (!has(key)) {
-      return storage.append(key, convertToString(t));
-    } else {
-      return storage.append(key, LINE_FEED + convertToString(t));
+    beginWrite(key);
+    try {
+      if (!has(key)) {
+        return storage.append(key, convertToString(t));
+      } else {
+        return storage.append(key, LINE_FEED + convertToString(t));
+      }
+    } finally {
+      endWrite(key);
     }
   }
 
@@ -111,7 +144,12 @@ public abstract class ObjStorage<T> {
    * @return whether delete success
    */
   public boolean delete(String key) {
-    return storage.delete(key);
+    beginWrite(key);
+    try {
+      return storage.delete(key);
+    } finally {
+      endWrite(key);
+    }
   }
 
   /**
@@ -122,7 +160,19 @@ public abstract class ObjStorage<T> {
    * @return is rename success
    */
   public boolean rename(String srcKey, String targetKey) {
-    return storage.rename(srcKey, targetKey);
+    ObjCache<T> cache = this.cache;
+    if (cache == null) {
+      return storage.rename(srcKey, targetKey);
+    }
+    cache.beginWrite();
+    if (storage.rename(srcKey, targetKey)) {
+      // the decoded objects move with the content, so a record renamed back and forth is decoded once
+      cache.rename(srcKey, targetKey);
+      return true;
+    }
+    cache.remove(srcKey);
+    cache.remove(targetKey);
+    return false;
   }
 
   /**
@@ -130,6 +180,10 @@ public abstract class ObjStorage<T> {
    */
   public void clear() {
     storage.clear();
+    ObjCache<T> cache = this.cache;
+    if (cache != null) {
+      cache.clear();
+    }
   }
 
   /**
@@ -175,13 +229,38 @@ public abstract class ObjStorage<T> {
     if(limit == 0) {
       return;
     }
-    String content = storage.get(key);
-    if (TextUtils.isEmpty(content)) {
+    ObjCache<T> cache = this.cache;
+    if (cache == null) {
+      read(key, container, limit);
       return;
     }
+    List<T> items = cache.get(key);
+    if (items == null) {
+      long writeCount = cache.getWriteCount();
+      items = new ArrayList<>();
+      long contentLength = read(key, items, GET_ALL_ITEM_COUNT);
+      if (contentLength >= 0) {
+        cache.putIfUnchanged(key, Collections.unmodifiableList(items), contentLength, writeCount);
+      }
+    }
+    for (int i = 0; i < items.size() && (limit < 0 || i < limit); i++) {
+      container.add(items.get(i));
+    }
+  }
+
+  /**
+   * read and decode the content of key
+   *
+   * @return the length of content, -1 if the content not exist or broken
+   */
+  private long read(String key, Collection<T> container, int limit) {
+    String content = storage.get(key);
+    if (StringUtils.isEmpty(content)) {
+      return -1;
+    }
     String[] itemJsons = content.split(LINE_FEED);
     if (itemJsons.length <= 0) {
-      return;
+      return -1;
     }
     int count = 0;
     for (String itemJson : itemJsons) {
@@ -193,9 +272,11 @@ public abstract class ObjStorage<T> {
           break;
         }
       } catch (Throwable t) {
-        // catch json format exception etc..
+        // catch json format exception etc.., skip the broken item, the others are still readable
+        t.printStackTrace();
       }
     }
+    return content.length();
   }
 
   /**
@@ -230,6 +311,65 @@ public abstract class ObjStorage<T> {
     }
   }
 
+  /**
+   * check the integrity of the content of key without decoding it, see {@link VerifiableStorage#check(String)}
+   *
+   * @param key the key
+   * @return false if the content not exist, or is torn or corrupted
+   */
+  public boolean check(String key) {
+    return StorageUtils.check(storage, key);
+  }
+
+  /**
+   * move the content of key out of storage for inspection, see {@link VerifiableStorage#quarantine(String)}
+   *
+   * @param key the key
+   * @return whether quarantine success
+   */
+  public boolean quarantine(String key) {
+    beginWrite(key);
+    try {
+      return StorageUtils.quarantine(storage, key);
+    } finally {
+      endWrite(key);
+    }
+  }
+
+  /**
+   * set the cache of decoded objects, null to disable cache, all writes to the wrapped storage must go through
+   * this ObjStorage when cache is enabled, or the cache become stale
+   *
+   * @param cache the cache
+   */
+  public void setCache(ObjCache<T> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * get the cache of decoded objects, for stats or resize
+   *
+   * @return the cache, null if cache is disabled
+   */
+  public ObjCache<T> getCache() {
+    return cache;
+  }
+
+  private void beginWrite(String key) {
+    ObjCache<T> cache = this.cache;
+    if (cache != null) {
+      cache.beginWrite();
+      cache.remove(key);
+    }
+  }
+
+  private void endWrite(String key) {
+    ObjCache<T> cache = this.cache;
+    if (cache != null) {
+      cache.remove(key);
+    }
+  }
+
   /**
    * get the byte size of content with the key
    *
@@ -249,6 +389,27 @@ public abstract class ObjStorage<T> {
     return storage.getKeys();
   }
 
+  /**
+   * iterate the keys start with prefix, see {@link ScannableStorage#scanPrefix(String)}
+   *
+   * @param prefix the prefix of keys
+   * @return keys
+   */
+  public Iterator<String> scanPrefix(String prefix) {
+    return StorageUtils.scanPrefix(storage, prefix);
+  }
+
+  /**
+   * iterate the keys in [fromKey, toKey), see {@link ScannableStorage#scanRange(String, String)}
+   *
+   * @param fromKey the lowest key, inclusive, null means unbounded
+   * @param toKey the highest key, exclusive, null means unbounded
+   * @return keys
+   */
+  public Iterator<String> scanRange(String fromKey, String toKey) {
+    return StorageUtils.scanRange(storage, fromKey, toKey);
+  }
+
   /**
    * return the storage version
    *
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.storage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import me.touko.core.utils.StorageUtils;
+
+/**
+ * a storage decorator which notify observers when keys are changed, wrap it with {@link ObjStorage} to observe
+ * object storage.
+ * <p/>
+ * notifications are delivered on the notify executor, changes happen before a delivery starts are coalesced
+ * into one map of key to change flags, so a burst of writes cost one callback.
+ */
+public class ObservableStorage implements Storage, VerifiableStorage, ScannableStorage {
+  /**
+   * the key is put, appended or recovered from backup
+   */
+  public static final int CHANGE_PUT = 1;
+  /**
+   * the key is deleted, quarantined or cleared
+   */
+  public static final int CHANGE_DELETE = 1 << 1;
+  /**
+   * the key is the target of a rename, the source key of rename is notified as {@link #CHANGE_DELETE}
+   */
+  public static final int CHANGE_RENAME = 1 << 2;
+  /**
+   * the key didn't exist before it's put or appended, always along with {@link #CHANGE_PUT}, so observers can
+   * tell new keys from rewrites
+   */
+  public static final int CHANGE_CREATE = 1 << 3;
+
+  private final Storage storage;
+  private final Executor notifyExecutor;
+  private final List<StorageObserver> observers = new CopyOnWriteArrayList<>();
+
+  private Map<String, Integer> pendingChanges = new LinkedHashMap<>();
+  private boolean notifyScheduled;
+
+  /**
+   * the observer of storage changes
+   */
+  public interface StorageObserver {
+    /**
+     * called on the notify executor
+     *
+     * @param changes the changed keys to the OR of their change flags since last notify, in change order
+     */
+    void onStorageChanged(Map<String, Integer> changes);
+  }
+
+  /**
+   * @param storage the storage to wrap
+   * @param notifyExecutor the executor to deliver notifications, observers should not block it
+   */
+  public ObservableStorage(Storage storage, Executor notifyExecutor) {
+    if (storage == null) {
+      throw new IllegalArgumentException("storage can't be null");
+    }
+    if (notifyExecutor == null) {
+      throw new IllegalArgumentException("notifyExecutor can't be null");
+    }
+    this.storage = storage;
+    this.notifyExecutor = notifyExecutor;
+  }
+
+  public void addStorageObserver(StorageObserver observer) {
+    if (observer != null) {
+      observers.add(observer);
+    }
+  }
+
+  public void removeStorageObserver(StorageObserver observer) {
+    observers.remove(observer);
+  }
+
+  @Override
+  public boolean put(String key, String content) {
+    int change = putChange(key);
+    return onChange(storage.put(key, content), key, change);
+  }
+
+  @Override
+  public boolean append(String key, String content) {
+    int change = putChange(key);
+    return onChange(storage.append(key, content), key, change);
+  }
+
+  @Override
+  public boolean delete(String key) {
+    return onChange(storage.delete(key), key, CHANGE_DELETE);
+  }
+
+  @Override
+  public boolean rename(String srcKey, String targetKey) {
+    if (storage.rename(srcKey, targetKey)) {
+      onChange(true, srcKey, CHANGE_DELETE);
+      onChange(true, targetKey, CHANGE_RENAME);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void clear() {
+    Set<String> keys = storage.getKeys();
+    storage.clear();
+    for (String key : keys) {
+      onChange(true, key, CHANGE_DELETE);
+    }
+  }
+
+  @Override
+  public boolean has(String key) {
+    return storage.has(key);
+  }
+
+  @Override
+  public String get(String key) {
+    return storage.get(key);
+  }
+
+  @Override
+  public boolean check(String key) {
+    return StorageUtils.check(storage, key);
+  }
+
+  @Override
+  public boolean quarantine(String key) {
+    return onChange(StorageUtils.quarantine(storage, key), key, CHANGE_DELETE);
+  }
+
+  @Override
+  public long size(String key) {
+    return storage.size(key);
+  }
+
+  @Override
+  public Set<String> getKeys() {
+    return storage.getKeys();
+  }
+
+  @Override
+  public Iterator<String> scanPrefix(String prefix) {
+    return StorageUtils.scanPrefix(storage, prefix);
+  }
+
+  @Override
+  public Iterator<String> scanRange(String fromKey, String toKey) {
+    return StorageUtils.scanRange(storage, fromKey, toKey);
+  }
+
+  @Override
+  public int getVersion() {
+    return storage.getVersion();
+  }
+
+  @Override
+  public File getStorageDir() {
+    return storage.getStorageDir();
+  }
+
+  @Override
+  public void backup(String key) {
+    storage.backup(key);
+  }
+
+  @Override
+  public boolean removeBackup(String key) {
+    return storage.removeBackup(key);
+  }
+
+  @Override
+  public void recover(String key) {
+    storage.recover(key);
+    onChange(true, key, CHANGE_PUT);
+  }
+
+  /**
+   * the wrapped storage
+   *
+   * @return storage
+   */
+  public Storage getStorage() {
+    return storage;
+  }
+
+  private int putChange(String key) {
+    if (observers.isEmpty() || storage.has(key)) {
+      return CHANGE_PUT;
+    }
+    return CHANGE_PUT | CHANGE_CREATE;
+  }
+
+  private boolean onChange(boolean changed, String key, int change) {
+    if (!changed || observers.isEmpty()) {
+      return changed;
+    }
+    synchronized (this) {
+      Integer flags = pendingChanges.get(key);
+      pendingChanges.put(key, flags == null ? change : flags | change);
+      if (notifyScheduled) {
+        return true;
+      }
+      notifyScheduled = true;
+    }
+    notifyExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        dispatchChanges();
+      }
+    });
+    return true;
+  }
+
+  private void dispatchChanges() {
+    Map<String, Integer> changes;
+    synchronized (this) {
+      changes = pendingChanges;
+      pendingChanges = new LinkedHashMap<>();
+      notifyScheduled = false;
+    }
+    if (changes.isEmpty()) {
+      return;
+    }
+    changes = Collections.unmodifiableMap(changes);
+    for (StorageObserver observer : observers) {
+      try {
+        observer.onStorageChanged(changes);
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.core.storage;
+
+import java.util.Iterator;
+
+/**
+ * an optional interface for {@link Storage} which can enumerate a part of keys without loading all of them,
+ * so a namespace of keys like "pending_" can be enumerated without touching the others. the storage decorators
+ * forward it when the wrapped storage implement it, see {@link me.touko.core.utils.StorageUtils}
+ * <p/>
+ * the iterators are weakly consistent, keys put or deleted during iteration may or may not be returned.
+ * the order of keys is up to the storage, {@link FileStorage} return them in ascending order.
+ */
+public interface ScannableStorage {
+  /**
+   * iterate the keys start with prefix
+   *
+   * @param prefix the prefix of keys
+   * @return Iterator<String>
+   */
+  Iterator<String> scanPrefix(String prefix);
+
+  /**
+   * iterate the keys in [fromKey, toKey)
+   *
+   * @param fromKey the lowest key, inclusive, null means unbounded
+   * @param toKey the highest key, exclusive, null means unbounded
+   * @return Iterator<String>
+   */
+  Iterator<String> scanRange(String fromKey, String toKey);
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.core.storage;
+
+import javax.crypto.SecretKey;
+
+/**
+ * a {@link KeyProvider} has only one key, for the providers implemented the single key {@code getKey()},
+ * the key is stored with id {@link #KEY_ID}, to rotate to a new key later, implement {@link KeyProvider}
+ * and keep this key available by {@link #KEY_ID}
+ */
+public abstract class SingleKeyProvider implements KeyProvider {
+  public static final String KEY_ID = "default";
+
+  /**
+   * get the AES key used to encrypt and decrypt storage content, must be 128, 192 or 256 bits
+   *
+   * @return the key
+   */
+  public abstract SecretKey getKey();
+
+  @Override
+  public final String getCurrentKeyId() {
+    return KEY_ID;
+  }
+
+  @Override
+  public final SecretKey getKey(String keyId) {
+    return KEY_ID.equals(keyId) ? getKey() : null;
+  }
+}
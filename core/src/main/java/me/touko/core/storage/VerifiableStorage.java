@@ -0,0 +1,40 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.core.storage;
+
+/**
+ * an optional interface for {@link Storage} which can find torn or corrupted content without decoding it,
+ * and keep the corrupted content out of storage for inspection. the storage decorators forward it when the
+ * wrapped storage implement it, see {@link me.touko.core.utils.StorageUtils}
+ */
+public interface VerifiableStorage {
+  /**
+   * check the integrity of the content of key without decoding it, like verify checksum etc..
+   *
+   * @param key the key of content
+   * @return false if the content not exist, or is torn or corrupted
+   */
+  boolean check(String key);
+
+  /**
+   * move the content of key out of storage, but keep it for inspection, used for corrupted content,
+   * after quarantine, {@link Storage#has(String)} return false
+   *
+   * @param key the key of content
+   * @return whether quarantine success
+   */
+  boolean quarantine(String key);
+}
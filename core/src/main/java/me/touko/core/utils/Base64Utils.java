@@ -0,0 +1,86 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+/**
+ * base64 of RFC 4648 with padding and without line wrap, the same output as android.util.Base64 with NO_WRAP,
+ * so storage code doesn't depend on android and can be unit tested on JVM.
+ */
+public class Base64Utils {
+  private static final char[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final int[] DECODE_TABLE = new int[128];
+
+  static {
+    for (int i = 0; i < DECODE_TABLE.length; i++) {
+      DECODE_TABLE[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length; i++) {
+      DECODE_TABLE[ALPHABET[i]] = i;
+    }
+  }
+
+  public static String encode(byte[] input) {
+    StringBuilder output = new StringBuilder((input.length + 2) / 3 * 4);
+    int i = 0;
+    for (; i + 2 < input.length; i += 3) {
+      int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+      output.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f])
+          .append(ALPHABET[(bits >>> 6) & 0x3f]).append(ALPHABET[bits & 0x3f]);
+    }
+    int rest = input.length - i;
+    if (rest > 0) {
+      int bits = (input[i] & 0xff) << 16 | (rest == 2 ? (input[i + 1] & 0xff) << 8 : 0);
+      output.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f])
+          .append(rest == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : '=').append('=');
+    }
+    return output.toString();
+  }
+
+  /**
+   * @param input the base64 string, padding is optional
+   * @return the decoded bytes
+   * @throws IllegalArgumentException if input is not valid base64
+   */
+  public static byte[] decode(String input) {
+    int length = input.length();
+    while (length > 0 && input.charAt(length - 1) == '=') {
+      length--;
+    }
+    if (input.length() - length > 2 || length % 4 == 1) {
+      throw new IllegalArgumentException("bad base64 length");
+    }
+    byte[] output = new byte[length * 3 / 4];
+    int bits = 0;
+    int bitCount = 0;
+    int index = 0;
+    for (int i = 0; i < length; i++) {
+      char c = input.charAt(i);
+      int value = c < DECODE_TABLE.length ? DECODE_TABLE[c] : -1;
+      if (value < 0) {
+        throw new IllegalArgumentException("bad base64 char: " + c);
+      }
+      bits = bits << 6 | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        output[index++] = (byte) (bits >>> bitCount);
+      }
+    }
+    return output;
+  }
+}
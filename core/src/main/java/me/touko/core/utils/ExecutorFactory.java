@@ -0,0 +1,107 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * create the executors of background work, the threads are named and daemon.
+ */
+public class ExecutorFactory {
+  private static ScheduledExecutorService lowPriorityExecutor;
+
+  /**
+   * get the shared single thread executor for low priority background work, like key rotation etc..
+   *
+   * @return the executor
+   */
+  public static synchronized ScheduledExecutorService getLowPriorityExecutor() {
+    if (lowPriorityExecutor == null) {
+      lowPriorityExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "storage-background");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+    return lowPriorityExecutor;
+  }
+
+  /**
+   * create a executor for disk io with at most threadCount threads, idle threads exit after a while
+   *
+   * @param threadCount the max thread count
+   * @return the executor
+   */
+  public static ExecutorService newIoExecutor(int threadCount) {
+    return newExecutor(threadCount, "storage-io-");
+  }
+
+  /**
+   * create a executor which start a thread for each task if no idle thread, for tasks mostly waiting,
+   * idle threads exit after a while
+   *
+   * @param threadNamePrefix the prefix of thread names, followed by thread number
+   * @return the executor
+   */
+  public static ExecutorService newCachedExecutor(final String threadNamePrefix) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, threadNamePrefix + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * create a executor with at most threadCount threads, idle threads exit after a while
+   *
+   * @param threadCount the max thread count
+   * @param threadNamePrefix the prefix of thread names, followed by thread number
+   * @return the executor
+   */
+  public static ExecutorService newExecutor(int threadCount, final String threadNamePrefix) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("threadCount must > 0");
+    }
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, threadNamePrefix + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
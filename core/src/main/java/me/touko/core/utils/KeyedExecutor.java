@@ -0,0 +1,155 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * run tasks on a executor, tasks of the same key run one by one in submit order, tasks of different keys
+ * run in parallel. a task can hold several keys, it runs after all earlier tasks of these keys finished,
+ * and later tasks of these keys wait for it.
+ */
+public class KeyedExecutor {
+  private final Executor executor;
+  private final Map<String, KeyQueue> queues = new HashMap<>();
+
+  public KeyedExecutor(Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor can't be null");
+    }
+    this.executor = executor;
+  }
+
+  /**
+   * run task after all earlier tasks of key finished
+   *
+   * @param key the key
+   * @param task the task
+   */
+  public void execute(String key, Runnable task) {
+    execute(Collections.singleton(key), task);
+  }
+
+  /**
+   * run task after all earlier tasks of the keys finished
+   *
+   * @param keys the keys
+   * @param task the task
+   */
+  public void execute(Collection<String> keys, Runnable task) {
+    Set<String> distinctKeys = new LinkedHashSet<>(keys);
+    if (distinctKeys.isEmpty()) {
+      executor.execute(task);
+      return;
+    }
+    KeyedTask keyedTask = new KeyedTask(task, distinctKeys.size());
+    synchronized (queues) {
+      for (String key : distinctKeys) {
+        KeyQueue queue = queues.get(key);
+        if (queue == null) {
+          queue = new KeyQueue(key);
+          queues.put(key, queue);
+        }
+        queue.tasks.add(keyedTask);
+        if (!queue.scheduled) {
+          queue.scheduled = true;
+          schedule(queue);
+        }
+      }
+    }
+  }
+
+  /**
+   * get the underlying executor, for tasks which not belong to any key
+   *
+   * @return executor
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  private void schedule(final KeyQueue queue) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain(queue);
+      }
+    });
+  }
+
+  private void drain(KeyQueue queue) {
+    while (true) {
+      KeyedTask task;
+      synchronized (queues) {
+        task = queue.tasks.peek();
+        if (task == null) {
+          queue.scheduled = false;
+          queues.remove(queue.key);
+          return;
+        }
+        task.arrived.add(queue);
+        if (task.arrived.size() < task.keyCount) {
+          // wait for the other keys of task, the last arrived queue will run it and resume this queue
+          return;
+        }
+      }
+      try {
+        task.runnable.run();
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
+      synchronized (queues) {
+        for (KeyQueue arrived : task.arrived) {
+          arrived.tasks.poll();
+          if (arrived != queue) {
+            schedule(arrived);
+          }
+        }
+      }
+    }
+  }
+
+  private static class KeyQueue {
+    private final String key;
+    private final LinkedList<KeyedTask> tasks = new LinkedList<>();
+    private boolean scheduled;
+
+    KeyQueue(String key) {
+      this.key = key;
+    }
+  }
+
+  private static class KeyedTask {
+    private final Runnable runnable;
+    private final int keyCount;
+    private final List<KeyQueue> arrived = new ArrayList<>();
+
+    KeyedTask(Runnable runnable, int keyCount) {
+      this.runnable = runnable;
+      this.keyCount = keyCount;
+    }
+  }
+}
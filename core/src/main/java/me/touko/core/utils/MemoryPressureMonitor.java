@@ -0,0 +1,177 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * dispatch memory pressure of process to listeners, so caches and buffers can be released before the process
+ * is killed.
+ * <p/>
+ * on android, pressure comes from {@link ComponentCallbacks2#onTrimMemory(int)}, see {@link #register(Context)}.
+ * below api 14, where no component callbacks can be registered, call {@link #dispatch(int)} with
+ * {@link #PRESSURE_CRITICAL} from {@link android.app.Application#onLowMemory()}.
+ * on plain JVM, {@link #watchSoftReference()} use a soft referenced sentinel, which is cleared by GC when heap is
+ * nearly exhausted.
+ */
+public class MemoryPressureMonitor {
+  /**
+   * memory is getting low, release what is cheap to rebuild
+   */
+  public static final int PRESSURE_MODERATE = 1;
+  /**
+   * memory is exhausted, release everything possible
+   */
+  public static final int PRESSURE_CRITICAL = 2;
+
+  private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private static boolean registered;
+  private static boolean watchingSoftReference;
+
+  private static volatile int lastPressure;
+  private static volatile long lastPressureTime;
+
+  /**
+   * the listener of memory pressure, called on the thread which receive the pressure, should return fast
+   */
+  public interface Listener {
+    /**
+     * @param pressure {@link #PRESSURE_MODERATE} or {@link #PRESSURE_CRITICAL}
+     */
+    void onMemoryPressure(int pressure);
+  }
+
+  /**
+   * register to the memory callbacks of application, only the first call takes effect, does nothing below api 14,
+   * which has no {@link Context#registerComponentCallbacks(ComponentCallbacks)}
+   *
+   * @param context the context
+   */
+  public static synchronized void register(Context context) {
+    if (registered) {
+      return;
+    }
+    registered = true;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+      registerTrimMemory(context.getApplicationContext());
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  private static void registerTrimMemory(Context appContext) {
+    appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+      @Override
+      public void onTrimMemory(int level) {
+        if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_COMPLETE) {
+          dispatch(PRESSURE_CRITICAL);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW || level >= TRIM_MEMORY_BACKGROUND) {
+          dispatch(PRESSURE_MODERATE);
+        }
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration newConfig) {
+      }
+
+      @Override
+      public void onLowMemory() {
+        dispatch(PRESSURE_CRITICAL);
+      }
+    });
+  }
+
+  /**
+   * watch the heap of plain JVM, where no memory callbacks exist, dispatch {@link #PRESSURE_CRITICAL} when the
+   * soft referenced sentinel is cleared by GC, don't use it on android, which clear soft references eagerly
+   */
+  public static synchronized void watchSoftReference() {
+    if (watchingSoftReference) {
+      return;
+    }
+    watchingSoftReference = true;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        while (true) {
+          Reference<Object> sentinel = new SoftReference<Object>(new byte[16 * 1024], queue);
+          try {
+            while (queue.remove() != sentinel) {
+              // only the latest sentinel matters
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          dispatch(PRESSURE_CRITICAL);
+        }
+      }
+    }, "memory-pressure-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public static void addListener(Listener listener) {
+    if (listener != null) {
+      listeners.add(listener);
+    }
+  }
+
+  public static void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * get the pressure received in the last withinMillis
+   *
+   * @param withinMillis the time window
+   * @return {@link #PRESSURE_MODERATE}, {@link #PRESSURE_CRITICAL}, or 0 if no pressure in the window
+   */
+  public static int getRecentPressure(long withinMillis) {
+    if (System.currentTimeMillis() - lastPressureTime > withinMillis) {
+      return 0;
+    }
+    return lastPressure;
+  }
+
+  /**
+   * dispatch pressure to listeners, also can be used to simulate pressure
+   *
+   * @param pressure {@link #PRESSURE_MODERATE} or {@link #PRESSURE_CRITICAL}
+   */
+  public static void dispatch(int pressure) {
+    lastPressure = pressure;
+    lastPressureTime = System.currentTimeMillis();
+    for (Listener listener : listeners) {
+      try {
+        listener.onMemoryPressure(pressure);
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
+    }
+  }
+}
@@ -16,14 +16,12 @@
 
 package me.touko.core.utils;
 
-import android.text.TextUtils;
-
 /**
  * author: zhoulei date: 15/4/18.
  */
 public class NumberParseUtils {
   public static boolean canParseLong(String string, int radix) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
@@ -51,7 +49,7 @@ public class NumberParseUtils {
   }
 
   public static boolean canParseInt(String string, int radix) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
@@ -87,7 +85,7 @@ public class NumberParseUtils {
   }
 
   public static boolean canParseShort(String string, int radix) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
@@ -103,7 +101,7 @@ public class NumberParseUtils {
   }
 
   public static boolean canParseByte(String string, int radix) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
@@ -119,7 +117,7 @@ public class NumberParseUtils {
   }
 
   public static boolean canParseFloat(String string) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
@@ -131,7 +129,7 @@ public class NumberParseUtils {
   }
 
   public static boolean canParseDouble(String string) {
-    if (TextUtils.isEmpty(string)) {
+    if (StringUtils.isEmpty(string)) {
       return false;
     }
     try {
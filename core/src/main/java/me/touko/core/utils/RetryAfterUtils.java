@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * parse the delay hints of server, like Retry-After and rate limit headers.
+ */
+public class RetryAfterUtils {
+  // IMF-fixdate, obsolete RFC 850 and asctime formats, see RFC 7231 7.1.1.1
+  private static final String[] HTTP_DATE_FORMATS = {
+      "EEE, dd MMM yyyy HH:mm:ss zzz",
+      "EEEE, dd-MMM-yy HH:mm:ss zzz",
+      "EEE MMM d HH:mm:ss yyyy"
+  };
+  // a reset value larger than it is a epoch time in seconds, not delta seconds
+  private static final long MIN_EPOCH_SECONDS = 1000000000L;
+
+  /**
+   * parse the value of Retry-After header, delta-seconds or HTTP-date
+   *
+   * @param value the header value
+   * @param now the current time in millis
+   * @return the delay in millis, -1 if value is invalid
+   */
+  public static long parseRetryAfter(String value, long now) {
+    if (StringUtils.isEmpty(value)) {
+      return -1;
+    }
+    value = value.trim();
+    long seconds = NumberParseUtils.parseLong(value, -1);
+    if (seconds >= 0) {
+      return seconds * 1000;
+    }
+    long time = parseHttpDate(value);
+    if (time < 0) {
+      return -1;
+    }
+    return Math.max(0, time - now);
+  }
+
+  /**
+   * parse the value of rate limit reset header, like RateLimit-Reset in delta seconds,
+   * or X-RateLimit-Reset which is epoch seconds on some servers
+   *
+   * @param value the header value
+   * @param now the current time in millis
+   * @return the delay in millis, -1 if value is invalid
+   */
+  public static long parseRateLimitReset(String value, long now) {
+    if (StringUtils.isEmpty(value)) {
+      return -1;
+    }
+    long seconds = NumberParseUtils.parseLong(value.trim(), -1);
+    if (seconds < 0) {
+      return -1;
+    }
+    if (seconds >= MIN_EPOCH_SECONDS) {
+      return Math.max(0, seconds * 1000 - now);
+    }
+    return seconds * 1000;
+  }
+
+  /**
+   * @param value the HTTP-date
+   * @return the time in millis, -1 if value is invalid
+   */
+  public static long parseHttpDate(String value) {
+    for (String format : HTTP_DATE_FORMATS) {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        Date date = dateFormat.parse(value);
+        if (date != null) {
+          return date.getTime();
+        }
+      } catch (ParseException e) {
+        // try next format
+      }
+    }
+    return -1;
+  }
+}
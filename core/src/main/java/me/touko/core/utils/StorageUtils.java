@@ -0,0 +1,90 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.touko.core.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import me.touko.core.storage.ScannableStorage;
+import me.touko.core.storage.Storage;
+import me.touko.core.storage.VerifiableStorage;
+
+/**
+ * call the optional storage interfaces, with fallbacks for the storages not implement them
+ */
+public class StorageUtils {
+  private StorageUtils() {
+  }
+
+  /**
+   * see {@link VerifiableStorage#check(String)}, content of other storages is never known as corrupted
+   *
+   * @return false if the content not exist, or is torn or corrupted
+   */
+  public static boolean check(Storage storage, String key) {
+    if (storage instanceof VerifiableStorage) {
+      return ((VerifiableStorage) storage).check(key);
+    }
+    return storage.has(key);
+  }
+
+  /**
+   * see {@link VerifiableStorage#quarantine(String)}, content of other storages is deleted
+   *
+   * @return whether quarantine success
+   */
+  public static boolean quarantine(Storage storage, String key) {
+    if (storage instanceof VerifiableStorage) {
+      return ((VerifiableStorage) storage).quarantine(key);
+    }
+    return storage.delete(key);
+  }
+
+  /**
+   * see {@link ScannableStorage#scanPrefix(String)}, keys of other storages are filtered from
+   * {@link Storage#getKeys()}
+   */
+  public static Iterator<String> scanPrefix(Storage storage, String prefix) {
+    if (storage instanceof ScannableStorage) {
+      return ((ScannableStorage) storage).scanPrefix(prefix);
+    }
+    List<String> keys = new ArrayList<>();
+    for (String key : storage.getKeys()) {
+      if (prefix == null || key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+    return keys.iterator();
+  }
+
+  /**
+   * see {@link ScannableStorage#scanRange(String, String)}, keys of other storages are filtered from
+   * {@link Storage#getKeys()}
+   */
+  public static Iterator<String> scanRange(Storage storage, String fromKey, String toKey) {
+    if (storage instanceof ScannableStorage) {
+      return ((ScannableStorage) storage).scanRange(fromKey, toKey);
+    }
+    List<String> keys = new ArrayList<>();
+    for (String key : storage.getKeys()) {
+      if ((fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0)) {
+        keys.add(key);
+      }
+    }
+    return keys.iterator();
+  }
+}
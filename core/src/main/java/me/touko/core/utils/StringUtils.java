@@ -0,0 +1,31 @@
+/*
+ *  Copyright (C) 2017 seiginonakama (https://github.com/seiginonakama).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.touko.core.utils;
+
+/**
+ * string helpers of plain java, so storage code doesn't depend on android.text.TextUtils and can be unit tested
+ * on JVM.
+ */
+public class StringUtils {
+  /**
+   * @param str the string
+   * @return true if str is null or 0-length
+   */
+  public static boolean isEmpty(CharSequence str) {
+    return str == null || str.length() == 0;
+  }
+}
@@ -0,0 +1,89 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+  @Test
+  public void saturatedWithStableRtt_limitGrowsToMax() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 5);
+
+    for (int round = 0; round < 20; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++) {
+        limiter.acquire();
+      }
+      for (int i = 0; i < limit; i++) {
+        limiter.release(10, true);
+      }
+    }
+
+    assertEquals(5, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void underused_limitNotInflated() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 10);
+
+    for (int i = 0; i < 50; i++) {
+      limiter.acquire();
+      limiter.release(10, true);
+    }
+
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void failureOrSlowRtt_limitCutButNotUnderOne() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10);
+    limiter.acquire();
+    limiter.release(10, true);
+
+    limiter.acquire();
+    limiter.release(10, false);
+    assertEquals(9, limiter.getLimit());
+
+    limiter.acquire();
+    limiter.release(50, true);
+    assertEquals(8, limiter.getLimit());
+
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire();
+      limiter.release(10, false);
+    }
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void acquire_blocksAtLimitUntilRelease() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1);
+    limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    });
+    thread.start();
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limiter.release(10, true);
+    assertTrue(acquired.await(1, TimeUnit.SECONDS));
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxUnderInitial_rejected() throws Exception {
+    new ConcurrencyLimiter(5, 4);
+  }
+}
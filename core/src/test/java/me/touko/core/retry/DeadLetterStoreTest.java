@@ -0,0 +1,80 @@
+package me.touko.core.retry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.touko.core.storage.FileStorage;
+import me.touko.core.storage.GsonObjStorage;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterStoreTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void add_overMaxCount_oldestDropped() throws Exception {
+    DeadLetterStore<String> store = newStore(false, 3, -1);
+
+    addSlowly(store, "a", "b", "c", "d", "e");
+
+    assertEquals(Arrays.asList("c", "d", "e"), getItems(store));
+  }
+
+  @Test
+  public void sharded_keysStillOldestFirst() throws Exception {
+    DeadLetterStore<String> store = newStore(true, 3, -1);
+
+    addSlowly(store, "a", "b", "c", "d");
+
+    assertEquals(Arrays.asList("b", "c", "d"), getItems(store));
+  }
+
+  @Test
+  public void trim_olderThanLifeDropped() throws Exception {
+    DeadLetterStore<String> store = newStore(false, 10, 100);
+    store.add("old", "old");
+
+    Thread.sleep(150);
+    store.add("new", "new");
+
+    assertEquals(Arrays.asList("new"), getItems(store));
+  }
+
+  @Test
+  public void removeAndPurge() throws Exception {
+    DeadLetterStore<String> store = newStore(false, 10, -1);
+    addSlowly(store, "a", "b", "c");
+
+    assertTrue(store.remove(store.getKeys().get(0)));
+    assertEquals(Arrays.asList("b", "c"), getItems(store));
+    assertEquals(2, store.purge());
+    assertTrue(store.getKeys().isEmpty());
+  }
+
+  private DeadLetterStore<String> newStore(boolean sharded, int maxCount, long life) {
+    return new DeadLetterStore<>(new GsonObjStorage<>(String.class,
+        new FileStorage(folder.getRoot().getPath(), 1, sharded)), maxCount, life);
+  }
+
+  private static void addSlowly(DeadLetterStore<String> store, String... items) throws Exception {
+    for (String item : items) {
+      // keys start with the add time in millis
+      Thread.sleep(2);
+      assertTrue(store.add(item, item));
+    }
+  }
+
+  private static List<String> getItems(DeadLetterStore<String> store) {
+    List<String> items = new ArrayList<>();
+    for (String key : store.getKeys()) {
+      items.add(store.get(key));
+    }
+    return items;
+  }
+}
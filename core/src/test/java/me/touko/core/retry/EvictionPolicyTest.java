@@ -0,0 +1,65 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest {
+  private final QueueManifest.Entry old = entry("old", 10, 100, 1);
+  private final QueueManifest.Entry large = entry("large", 20, 500, 2);
+  private final QueueManifest.Entry low = entry("low", 30, 50, 0);
+  private final List<QueueManifest.Entry> queued = Arrays.asList(large, low, old);
+
+  @Test
+  public void dropOldest_evictsByCreateTime() throws Exception {
+    List<QueueManifest.Entry> evictions = EvictionPolicy.DROP_OLDEST.selectEvictions(queued,
+        entry("new", 40, 10, 1), 2, 0);
+
+    assertEquals(Arrays.asList(old, large), evictions);
+  }
+
+  @Test
+  public void dropOldest_incomingOldest_rejected() throws Exception {
+    assertNull(EvictionPolicy.DROP_OLDEST.selectEvictions(queued, entry("new", 0, 10, 1), 1, 0));
+  }
+
+  @Test
+  public void dropLargest_evictsUntilEnoughBytes() throws Exception {
+    List<QueueManifest.Entry> evictions = EvictionPolicy.DROP_LARGEST.selectEvictions(queued,
+        entry("new", 40, 10, 1), 0, 550);
+
+    assertEquals(Arrays.asList(large, old), evictions);
+  }
+
+  @Test
+  public void dropLargest_incomingLargest_rejected() throws Exception {
+    assertNull(EvictionPolicy.DROP_LARGEST.selectEvictions(queued, entry("new", 40, 1000, 1), 1, 0));
+  }
+
+  @Test
+  public void dropLowestPriority_oldestFirstAmongSamePriority() throws Exception {
+    QueueManifest.Entry newer = entry("newer", 35, 50, 0);
+    List<QueueManifest.Entry> evictions = EvictionPolicy.DROP_LOWEST_PRIORITY.selectEvictions(
+        Arrays.asList(newer, large, low, old), entry("new", 40, 10, 2), 3, 0);
+
+    assertEquals(Arrays.asList(low, newer, old), evictions);
+  }
+
+  @Test
+  public void notEnoughToEvict_rejected() throws Exception {
+    assertNull(EvictionPolicy.DROP_OLDEST.selectEvictions(queued, entry("new", 40, 10, 1), 4, 0));
+    assertNull(EvictionPolicy.DROP_OLDEST.selectEvictions(queued, entry("new", 40, 10, 1), 0, 1000));
+  }
+
+  @Test
+  public void rejectNew_keepsQueued() throws Exception {
+    assertNull(EvictionPolicy.REJECT_NEW.selectEvictions(queued, entry("new", 40, 10, 1), 1, 0));
+  }
+
+  private static QueueManifest.Entry entry(String key, long createTime, long size, int priority) {
+    return new QueueManifest.Entry(key, -1, 0, 3, 0, size, createTime, priority);
+  }
+}
@@ -0,0 +1,50 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+  @Test
+  public void getPercentile_unknownBeforeMinSamples() throws Exception {
+    LatencyTracker tracker = new LatencyTracker(10, 3);
+    tracker.record(10);
+    tracker.record(20);
+
+    assertEquals(-1, tracker.getPercentile(0.5));
+    tracker.record(30);
+    assertEquals(20, tracker.getPercentile(0.5));
+  }
+
+  @Test
+  public void getPercentile_nearestRank() throws Exception {
+    LatencyTracker tracker = new LatencyTracker(100, 1);
+    for (int i = 100; i >= 1; i--) {
+      tracker.record(i);
+    }
+
+    assertEquals(1, tracker.getPercentile(0));
+    assertEquals(50, tracker.getPercentile(0.5));
+    assertEquals(95, tracker.getPercentile(0.95));
+    assertEquals(100, tracker.getPercentile(1));
+  }
+
+  @Test
+  public void ring_keepsLatestSamples() throws Exception {
+    LatencyTracker tracker = new LatencyTracker(4, 1);
+    for (int i = 1; i <= 4; i++) {
+      tracker.record(1000);
+    }
+    for (int i = 1; i <= 4; i++) {
+      tracker.record(i);
+    }
+
+    assertEquals(4, tracker.getCount());
+    assertEquals(4, tracker.getPercentile(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void minSamplesOverCapacity_rejected() throws Exception {
+    new LatencyTracker(2, 3);
+  }
+}
@@ -0,0 +1,159 @@
+package me.touko.core.retry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+import me.touko.core.storage.MemoryStorage;
+
+import static org.junit.Assert.*;
+
+public class LeaseTableTest {
+  private CountingStorage storage;
+  private LeaseTable leases;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new CountingStorage();
+    leases = new LeaseTable(storage, "journal");
+  }
+
+  @Test
+  public void acquire_heldUntilReleased() throws Exception {
+    long token = leases.acquire("a", 60000);
+    assertTrue(token != 0);
+    assertEquals(0, leases.acquire("a", 60000));
+    assertTrue(leases.isLeased("a"));
+
+    assertTrue(leases.release("a", token));
+
+    assertFalse(leases.isLeased("a"));
+    assertTrue(leases.acquire("a", 60000) != 0);
+  }
+
+  @Test
+  public void acquire_expiredLeaseTakenAgain() throws Exception {
+    assertTrue(leases.acquire("a", 1) != 0);
+    Thread.sleep(10);
+
+    assertFalse(leases.isLeased("a"));
+    assertTrue(leases.acquire("a", 60000) != 0);
+  }
+
+  @Test
+  public void release_expiredHolder_newLeaseKept() throws Exception {
+    long first = leases.acquire("a", 1);
+    Thread.sleep(10);
+    long second = leases.acquire("a", 60000);
+
+    assertFalse(leases.release("a", first));
+
+    assertTrue(leases.isLeased("a"));
+    assertTrue(leases.release("a", second));
+    assertFalse(leases.isLeased("a"));
+  }
+
+  @Test
+  public void release_lastLease_journalDeleted() throws Exception {
+    long a = leases.acquire("a", 60000);
+    long b = leases.acquire("b", 60000);
+    leases.flush();
+    leases.release("a", a);
+    assertTrue(storage.has("journal"));
+
+    leases.release("b", b);
+
+    assertFalse(storage.has("journal"));
+  }
+
+  @Test
+  public void flush_batchedInOneWrite() throws Exception {
+    long[] tokens = new long[10];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = leases.acquire("id" + i, 60000);
+    }
+    leases.flush();
+    leases.flush();
+    assertEquals(1, storage.writeCount);
+
+    for (int i = 0; i < tokens.length; i++) {
+      leases.release("id" + i, tokens[i]);
+    }
+
+    // the releases are buffered, the last one delete the journal
+    assertEquals(2, storage.writeCount);
+    assertFalse(storage.has("journal"));
+  }
+
+  @Test
+  public void flush_manyOutdatedLines_compacted() throws Exception {
+    long held = leases.acquire("held", 60000);
+    for (int i = 0; i < 100; i++) {
+      long token = leases.acquire("id" + i, 60000);
+      leases.flush();
+      leases.release("id" + i, token);
+    }
+    leases.flush();
+
+    assertTrue(storage.get("journal").split("\n").length <= 64);
+    LeaseTable restarted = new LeaseTable(storage, "journal");
+    assertEquals(Arrays.asList("held"), new ArrayList<>(restarted.recover()));
+    assertTrue(held != 0);
+  }
+
+  @Test
+  public void recover_unreleasedInAcquireOrder() throws Exception {
+    leases.acquire("b", 60000);
+    long a = leases.acquire("a", 60000);
+    leases.acquire("c", 60000);
+    leases.flush();
+    leases.release("a", a);
+    leases.flush();
+
+    LeaseTable restarted = new LeaseTable(storage, "journal");
+    Set<String> recovered = restarted.recover();
+
+    assertEquals(Arrays.asList("b", "c"), new ArrayList<>(recovered));
+    assertFalse(storage.has("journal"));
+    assertTrue(restarted.recover().isEmpty());
+  }
+
+  @Test
+  public void recover_notFlushed_notJournaled() throws Exception {
+    leases.acquire("a", 60000);
+
+    assertTrue(new LeaseTable(storage, "journal").recover().isEmpty());
+  }
+
+  @Test
+  public void recover_tornLastLineIgnored() throws Exception {
+    storage.put("journal", "+a\n+b\n-a\n-");
+
+    assertEquals(Arrays.asList("b"), new ArrayList<>(leases.recover()));
+  }
+
+  private static class CountingStorage extends MemoryStorage {
+    private int writeCount;
+
+    @Override
+    public boolean put(String key, String content) {
+      writeCount++;
+      return super.put(key, content);
+    }
+
+    @Override
+    public boolean append(String key, String content) {
+      writeCount++;
+      return super.append(key, content);
+    }
+
+    @Override
+    public boolean delete(String key) {
+      writeCount++;
+      return super.delete(key);
+    }
+  }
+}
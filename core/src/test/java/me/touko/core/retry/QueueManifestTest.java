@@ -0,0 +1,172 @@
+package me.touko.core.retry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import me.touko.core.storage.MemoryStorage;
+
+import static org.junit.Assert.*;
+
+public class QueueManifestTest {
+  private QueueManifest manifest;
+
+  @Before
+  public void setUp() throws Exception {
+    manifest = new QueueManifest(new MemoryStorage(), "manifest");
+  }
+
+  @Test
+  public void getExpiredEntries_deadlineOrderAndLimit() throws Exception {
+    manifest.put(entry("c", 30));
+    manifest.put(entry("a", 10));
+    manifest.put(entry("b", 20));
+    manifest.put(entry("late", 100));
+    manifest.put(entry("none", -1));
+
+    List<QueueManifest.Entry> expired = manifest.getExpiredEntries(50, 2, null);
+
+    assertEquals(2, expired.size());
+    assertEquals("a", expired.get(0).key);
+    assertEquals("b", expired.get(1).key);
+    assertEquals(3, manifest.getExpiredEntries(50, 10, null).size());
+  }
+
+  @Test
+  public void getExpiredEntries_rejectedNotCountedInLimit() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      manifest.put(entry("leased" + i, i));
+    }
+    manifest.put(entry("free", 10));
+
+    List<QueueManifest.Entry> expired = manifest.getExpiredEntries(50, 2, new QueueManifest.EntryFilter() {
+      @Override
+      public boolean accept(QueueManifest.Entry entry) {
+        return !entry.key.startsWith("leased");
+      }
+    });
+
+    assertEquals(1, expired.size());
+    assertEquals("free", expired.get(0).key);
+  }
+
+  @Test
+  public void getNextDeadline_afterNow() throws Exception {
+    manifest.put(entry("a", 10));
+    manifest.put(entry("b", 60));
+    manifest.put(entry("none", -1));
+
+    assertEquals(10, manifest.getNextDeadline());
+    assertEquals(60, manifest.getNextDeadline(50));
+    assertEquals(-1, manifest.getNextDeadline(61));
+  }
+
+  @Test
+  public void remove_leavesDeadlineIndex() throws Exception {
+    manifest.put(entry("a", 10));
+    manifest.put(entry("a", 70));
+    manifest.put(entry("b", 20));
+    manifest.remove("b");
+
+    assertTrue(manifest.getExpiredEntries(50, 10, null).isEmpty());
+    assertEquals(70, manifest.getNextDeadline());
+  }
+
+  @Test
+  public void load_restoresEntriesAndBytes() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    QueueManifest written = new QueueManifest(storage, "manifest");
+    written.put(new QueueManifest.Entry("a", 10, 1, 3, 5, 100, 2, 1));
+    written.put(entry("b", 20));
+    written.put(entry("c", -1));
+    written.remove("b");
+
+    QueueManifest loaded = new QueueManifest(storage, "manifest");
+
+    assertTrue(loaded.load());
+    assertEquals(2, loaded.size());
+    assertEquals(101, loaded.getTotalBytes());
+    QueueManifest.Entry a = loaded.get("a");
+    assertEquals(10, a.deadline);
+    assertEquals(1, a.retryTimes);
+    assertEquals(3, a.maxRetryTimes);
+    assertEquals(5, a.dueTime);
+    assertEquals(2, a.createTime);
+    assertEquals(1, a.priority);
+    assertNull(loaded.get("b"));
+    assertEquals(10, loaded.getNextDeadline());
+  }
+
+  @Test
+  public void load_brokenLinesSkipped() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    // a short line, a negative size and a line torn by crash
+    storage.put("manifest", "+a 10 0 3 0 1 0 0\n+b 1 2\n+c 10 0 3 0 -5 0 0\n+d 20 0");
+    QueueManifest loaded = new QueueManifest(storage, "manifest");
+
+    assertTrue(loaded.load());
+    assertEquals(1, loaded.size());
+    assertNotNull(loaded.get("a"));
+    assertFalse(new QueueManifest(new MemoryStorage(), "manifest").load());
+  }
+
+  @Test
+  public void getNextDueTime_earliestAfterNow() throws Exception {
+    manifest.put(new QueueManifest.Entry("due", -1, 0, 3, 50, 1, 0, 0));
+    manifest.put(new QueueManifest.Entry("later", -1, 0, 3, 300, 1, 0, 0));
+    manifest.put(new QueueManifest.Entry("soon", -1, 0, 3, 200, 1, 0, 0));
+    manifest.put(new QueueManifest.Entry("any", -1, 0, 3, 0, 1, 0, 0));
+
+    assertEquals(200, manifest.getNextDueTime(100));
+    assertEquals(300, manifest.getNextDueTime(200));
+    assertEquals(-1, manifest.getNextDueTime(300));
+
+    manifest.put(new QueueManifest.Entry("soon", -1, 0, 3, 0, 1, 0, 0));
+    assertEquals(300, manifest.getNextDueTime(100));
+  }
+
+  @Test
+  public void compact_rewritesOneLinePerEntry() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    QueueManifest written = new QueueManifest(storage, "manifest");
+    for (int i = 0; i < 200; i++) {
+      written.put(entry("a", i));
+    }
+    written.put(entry("b", 5));
+
+    int lines = storage.get("manifest").split("\n").length;
+    assertTrue("lines " + lines, lines < 200);
+    QueueManifest loaded = new QueueManifest(storage, "manifest");
+    loaded.load();
+    assertEquals(199, loaded.get("a").deadline);
+    assertEquals(2, loaded.size());
+  }
+
+  @Test
+  public void compact_fewOutdatedLines_skipped() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    QueueManifest written = new QueueManifest(storage, "manifest");
+    for (int i = 0; i < 10; i++) {
+      written.put(entry("small" + i, i));
+      written.put(entry("small" + i, i + 1));
+      written.put(entry("small" + i, i + 2));
+    }
+
+    written.compact();
+    assertEquals(30, storage.get("manifest").split("\n").length);
+
+    for (int i = 0; i < 90; i++) {
+      written.put(entry("large" + i, i));
+    }
+    for (int i = 0; i < 50; i++) {
+      written.put(entry("large" + i, i + 1));
+    }
+    written.compact();
+    assertEquals(170, storage.get("manifest").split("\n").length);
+  }
+
+  static QueueManifest.Entry entry(String key, long deadline) {
+    return new QueueManifest.Entry(key, deadline, 0, 3, 0, 1, 0, 0);
+  }
+}
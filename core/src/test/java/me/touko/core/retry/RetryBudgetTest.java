@@ -0,0 +1,64 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryBudgetTest {
+  @Test
+  public void retries_cappedByRatioOfRequests() throws Exception {
+    RetryBudget budget = new RetryBudget(0.5, 0, 60000);
+    for (int i = 0; i < 4; i++) {
+      budget.recordRequest();
+    }
+
+    assertEquals(2, budget.getAvailableRetries());
+    assertTrue(budget.tryAcquireRetry());
+    assertTrue(budget.tryAcquireRetry());
+    assertFalse(budget.tryAcquireRetry());
+    assertEquals(4, budget.getRequestCount());
+    assertEquals(2, budget.getRetryCount());
+    assertEquals(1, budget.getRejectedCount());
+  }
+
+  @Test
+  public void noFreshTraffic_minRetriesAllowed() throws Exception {
+    RetryBudget budget = new RetryBudget(0.1, 0.1, 20000);
+
+    assertTrue(budget.tryAcquireRetry());
+    assertTrue(budget.tryAcquireRetry());
+    assertFalse(budget.tryAcquireRetry());
+  }
+
+  @Test
+  public void window_countsExpire() throws Exception {
+    RetryBudget budget = new RetryBudget(1, 0, 100);
+    budget.recordRequest();
+    assertTrue(budget.tryAcquireRetry());
+    assertFalse(budget.tryAcquireRetry());
+
+    Thread.sleep(150);
+
+    assertEquals(0, budget.getRequestCount());
+    assertEquals(0, budget.getRetryCount());
+    budget.recordRequest();
+    assertTrue(budget.tryAcquireRetry());
+  }
+
+  @Test
+  public void nextSlotTime_withinOneSlot() throws Exception {
+    RetryBudget budget = new RetryBudget(1, 0, 10000);
+    long now = System.currentTimeMillis();
+
+    long nextSlotTime = budget.getNextSlotTime();
+
+    assertTrue(nextSlotTime > now);
+    assertTrue(nextSlotTime <= now + 1000 + 10);
+    assertEquals(0, nextSlotTime % 1000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeRatio_rejected() throws Exception {
+    new RetryBudget(-1, 0, 1000);
+  }
+}
@@ -0,0 +1,47 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+  private final RetryPolicy defaults = new RetryPolicy(1000, 3, 100, 0);
+
+  @Test
+  public void parse_allFields() throws Exception {
+    RetryPolicy policy = RetryPolicy.parse("life=86400000; maxRetryTimes=10; backoff=60000; priority=5", defaults);
+
+    assertEquals(86400000, policy.getLife());
+    assertEquals(10, policy.getMaxRetryTimes());
+    assertEquals(60000, policy.getBackoff());
+    assertEquals(5, policy.getPriority());
+  }
+
+  @Test
+  public void parse_missingUnknownAndBrokenFields_takeDefaults() throws Exception {
+    RetryPolicy policy = RetryPolicy.parse(" priority = 7 ;color=red;maxRetryTimes=many;life", defaults);
+
+    assertEquals(1000, policy.getLife());
+    assertEquals(3, policy.getMaxRetryTimes());
+    assertEquals(100, policy.getBackoff());
+    assertEquals(7, policy.getPriority());
+  }
+
+  @Test
+  public void parse_empty_defaults() throws Exception {
+    assertSame(defaults, RetryPolicy.parse(null, defaults));
+    assertSame(defaults, RetryPolicy.parse("", defaults));
+  }
+
+  @Test
+  public void headerValue_roundTrip() throws Exception {
+    RetryPolicy policy = new RetryPolicy(-1, -1, -5, -2);
+
+    RetryPolicy parsed = RetryPolicy.parse(policy.toHeaderValue(), defaults);
+
+    assertEquals(-1, parsed.getLife());
+    assertEquals(-1, parsed.getMaxRetryTimes());
+    assertEquals(0, parsed.getBackoff());
+    assertEquals(-2, parsed.getPriority());
+  }
+}
@@ -0,0 +1,43 @@
+package me.touko.core.retry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+  @Test
+  public void reserve_burstUpToCapacityThenDelay() throws Exception {
+    TokenBucket bucket = new TokenBucket(1, 2);
+
+    assertEquals(0, bucket.reserve(1));
+    assertEquals(0, bucket.reserve(1));
+    long delay = bucket.reserve(1);
+
+    assertTrue("delay " + delay, delay > 900 && delay <= 1000);
+  }
+
+  @Test
+  public void reserve_largerThanCapacity_allowedWithDebt() throws Exception {
+    TokenBucket bucket = new TokenBucket(10, 10);
+
+    long delay = bucket.reserve(30);
+
+    assertTrue("delay " + delay, delay > 1900 && delay <= 2000);
+    assertTrue(bucket.getTokens() < 0);
+  }
+
+  @Test
+  public void refill_cappedAtCapacity() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000, 5);
+    bucket.reserve(5);
+
+    Thread.sleep(50);
+
+    assertEquals(5, bucket.getTokens(), 0.001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidRate_rejected() throws Exception {
+    new TokenBucket(0, 1);
+  }
+}
@@ -0,0 +1,285 @@
+package me.touko.core.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class AesGcmFileStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String THREE_FRAMES = "0123456789abcdef0123456789abcdef0123456789abcdef";
+  // key id "k1" and 16 bytes frames: [1][2][index 4][flags 1][length 4][nonce 12][cipher text 16][tag 16]
+  private static final int FRAME_BYTES = 1 + 2 + 4 + 1 + 4 + 12 + 16 + 16;
+
+  private TestKeyProvider keyProvider;
+  private AesGcmFileStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    keyProvider = new TestKeyProvider("k1");
+    storage = new AesGcmFileStorage(folder.getRoot().getPath(), 1, keyProvider, 16);
+  }
+
+  @Test
+  public void putAndAppend_multiFrame_roundTrip() throws Exception {
+    String content = "retry 请求 content spanning many sixteen byte frames";
+
+    assertTrue(storage.put("a", content));
+    assertTrue(storage.append("a", "+tail"));
+
+    assertEquals(content + "+tail", storage.get("a"));
+    assertTrue(storage.check("a"));
+  }
+
+  @Test
+  public void content_notStoredInPlain() throws Exception {
+    storage.put("a", "secret_value");
+
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    assertFalse(new String(bytes, "ISO-8859-1").contains("secret_value"));
+  }
+
+  @Test
+  public void tamperedFrame_quarantined() throws Exception {
+    storage.put("a", "some content to tamper");
+    File file = storage.getStorageFile("a");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() - 1);
+    int last = raf.read();
+    raf.seek(raf.length() - 1);
+    raf.write(last ^ 1);
+    raf.close();
+
+    assertNull(storage.get("a"));
+    assertFalse(storage.has("a"));
+    assertEquals(1, storage.getQuarantinedFiles().size());
+  }
+
+  @Test
+  public void truncatedFrame_checkFails() throws Exception {
+    storage.put("a", "some content to truncate");
+    RandomAccessFile raf = new RandomAccessFile(storage.getStorageFile("a"), "rw");
+    raf.setLength(raf.length() - 5);
+    raf.close();
+
+    assertFalse(storage.check("a"));
+  }
+
+  @Test
+  public void reorderedFrames_quarantined() throws Exception {
+    storage.put("a", THREE_FRAMES);
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    byte[] reordered = bytes.clone();
+    System.arraycopy(bytes, 0, reordered, FRAME_BYTES, FRAME_BYTES);
+    System.arraycopy(bytes, FRAME_BYTES, reordered, 0, FRAME_BYTES);
+    writeFile(storage.getStorageFile("a"), reordered, reordered.length);
+
+    assertFalse(storage.check("a"));
+    assertNull(storage.get("a"));
+    assertEquals(1, storage.getQuarantinedFiles().size());
+  }
+
+  @Test
+  public void droppedFrame_quarantined() throws Exception {
+    storage.put("a", THREE_FRAMES);
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    byte[] dropped = new byte[bytes.length - FRAME_BYTES];
+    System.arraycopy(bytes, 0, dropped, 0, FRAME_BYTES);
+    System.arraycopy(bytes, FRAME_BYTES * 2, dropped, FRAME_BYTES, FRAME_BYTES);
+    writeFile(storage.getStorageFile("a"), dropped, dropped.length);
+
+    assertFalse(storage.check("a"));
+    assertNull(storage.get("a"));
+  }
+
+  @Test
+  public void cutAtFrameBoundaryInsideWrite_detected() throws Exception {
+    storage.put("a", THREE_FRAMES);
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    writeFile(storage.getStorageFile("a"), bytes, FRAME_BYTES * 2);
+
+    assertFalse(storage.check("a"));
+    assertNull(storage.get("a"));
+  }
+
+  @Test
+  public void cutAtWriteBoundary_earlierContent() throws Exception {
+    storage.put("a", THREE_FRAMES);
+    long length = storage.getStorageFile("a").length();
+    storage.append("a", "tail");
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    writeFile(storage.getStorageFile("a"), bytes, (int) length);
+
+    assertTrue(storage.check("a"));
+    assertEquals(THREE_FRAMES, storage.get("a"));
+  }
+
+  @Test
+  public void append_afterTornWrite_cutsTornFrames() throws Exception {
+    storage.put("a", "head");
+    long length = storage.getStorageFile("a").length();
+    storage.append("a", THREE_FRAMES);
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    writeFile(storage.getStorageFile("a"), bytes, (int) length + FRAME_BYTES);
+
+    assertTrue(storage.append("a", "tail"));
+
+    assertEquals("headtail", storage.get("a"));
+    assertTrue(storage.check("a"));
+  }
+
+  @Test
+  public void unknownKey_notReadable_notQuarantined() throws Exception {
+    storage.put("a", "content");
+    AesGcmFileStorage other = new AesGcmFileStorage(folder.getRoot().getPath(), 1, new TestKeyProvider("k2"), 16);
+
+    assertNull(other.get("a"));
+    assertTrue(other.has("a"));
+  }
+
+  @Test
+  public void keyRotation_reEncryptsWithCurrentKey() throws Exception {
+    storage.put("a", "content a");
+    storage.put("b", "content b");
+    keyProvider.addKey("k2");
+    keyProvider.currentKeyId = "k2";
+
+    storage.startKeyRotation();
+    awaitRotation();
+    keyProvider.keys.remove("k1");
+
+    assertEquals("content a", storage.get("a"));
+    assertEquals("content b", storage.get("b"));
+  }
+
+  @Test
+  public void keyRotation_reEncryptsBackupAndQuarantine() throws Exception {
+    storage.put("a", "content a");
+    storage.backup("a");
+    storage.put("b", "content b");
+    storage.quarantine("b");
+    keyProvider.addKey("k2");
+    keyProvider.currentKeyId = "k2";
+    assertTrue(storage.isKeyInUse("k1"));
+
+    storage.startKeyRotation();
+    awaitRotation();
+
+    assertFalse(storage.isKeyInUse("k1"));
+    keyProvider.keys.remove("k1");
+    storage.delete("a");
+    storage.recover("a");
+    assertEquals("content a", storage.get("a"));
+  }
+
+  @Test
+  public void keyRotation_corruptedQuarantine_keyStillInUse() throws Exception {
+    storage.put("a", THREE_FRAMES);
+    byte[] bytes = readFile(storage.getStorageFile("a"));
+    writeFile(storage.getStorageFile("a"), bytes, FRAME_BYTES * 2);
+    assertNull(storage.get("a"));
+    keyProvider.addKey("k2");
+    keyProvider.currentKeyId = "k2";
+
+    storage.startKeyRotation();
+    awaitRotation();
+
+    assertTrue(storage.isKeyInUse("k1"));
+    storage.clearQuarantine();
+    assertFalse(storage.isKeyInUse("k1"));
+  }
+
+  @Test
+  public void keyRotation_failure_canStartAgain() throws Exception {
+    storage.put("a", "content a");
+    keyProvider.failCurrentKeyId = true;
+
+    storage.startKeyRotation();
+    awaitRotation();
+
+    keyProvider.failCurrentKeyId = false;
+    storage.startKeyRotation();
+    awaitRotation();
+    assertEquals("content a", storage.get("a"));
+  }
+
+  @Test
+  public void singleKeyProvider_roundTrip() throws Exception {
+    final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    AesGcmFileStorage single = new AesGcmFileStorage(folder.newFolder().getPath(), 1, new SingleKeyProvider() {
+      @Override
+      public SecretKey getKey() {
+        return key;
+      }
+    });
+
+    single.put("a", "content");
+
+    assertEquals("content", single.get("a"));
+  }
+
+  private void awaitRotation() throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (storage.isKeyRotationRunning()) {
+      assertTrue("rotation not finished", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static void writeFile(File file, byte[] bytes, int length) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    raf.write(bytes, 0, length);
+    raf.close();
+  }
+
+  private static byte[] readFile(File file) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    byte[] bytes = new byte[(int) raf.length()];
+    raf.readFully(bytes);
+    raf.close();
+    return bytes;
+  }
+
+  static class TestKeyProvider implements KeyProvider {
+    final Map<String, SecretKey> keys = new ConcurrentHashMap<>();
+    volatile String currentKeyId;
+    volatile boolean failCurrentKeyId;
+
+    TestKeyProvider(String currentKeyId) {
+      this.currentKeyId = currentKeyId;
+      addKey(currentKeyId);
+    }
+
+    void addKey(String keyId) {
+      byte[] bytes = new byte[16];
+      bytes[0] = (byte) keyId.hashCode();
+      keys.put(keyId, new SecretKeySpec(bytes, "AES"));
+    }
+
+    @Override
+    public String getCurrentKeyId() {
+      if (failCurrentKeyId) {
+        throw new IllegalStateException("key store locked");
+      }
+      return currentKeyId;
+    }
+
+    @Override
+    public SecretKey getKey(String keyId) {
+      return keys.get(keyId);
+    }
+  }
+}
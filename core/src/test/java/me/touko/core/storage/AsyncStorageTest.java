@@ -0,0 +1,73 @@
+package me.touko.core.storage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncStorageTest {
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final AsyncStorage storage = new AsyncStorage(new MemoryStorage(), executor);
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sameKey_operationsInSubmitOrder() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      storage.append("a", String.valueOf(i % 10), null);
+    }
+
+    Future<String> content = storage.get("a", null);
+
+    assertEquals("01234567890123456789", content.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void callback_receivesResult() throws Exception {
+    final AtomicReference<String> result = new AtomicReference<>();
+    final CountDownLatch called = new CountDownLatch(1);
+    storage.put("a", "1", null);
+
+    storage.get("a", new AsyncStorage.Callback<String>() {
+      @Override
+      public void onResult(String value) {
+        result.set(value);
+        called.countDown();
+      }
+    });
+
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    assertEquals("1", result.get());
+  }
+
+  @Test
+  public void execute_failure_throwsFromFuture() throws Exception {
+    Future<Boolean> future = storage.execute(Collections.singleton("a"), new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        throw new IllegalStateException("expected by test");
+      }
+    }, null);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(storage.put("a", "1", null).get(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,83 @@
+package me.touko.core.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompressedStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FileStorage fileStorage;
+  private CompressedStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    fileStorage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage = new CompressedStorage(fileStorage, 64, null);
+  }
+
+  @Test
+  public void roundTrip_rawBase64AndDeflate() throws Exception {
+    String small = "small";
+    String multiLine = "line1\nline2\n";
+    String large = repeat("{\"url\":\"http://example.com/api\",\"method\":\"POST\"}", 20);
+
+    storage.put("small", small);
+    storage.put("multiLine", multiLine);
+    storage.put("large", large);
+
+    assertEquals(small, storage.get("small"));
+    assertEquals(multiLine, storage.get("multiLine"));
+    assertEquals(large, storage.get("large"));
+    assertTrue(fileStorage.get("large").length() < large.length());
+    assertEquals(1, storage.getStats().getCompressedCount());
+  }
+
+  @Test
+  public void append_concatenates() throws Exception {
+    String large = repeat("abcdefgh", 40);
+
+    storage.append("a", "head ");
+    storage.append("a", large);
+    storage.append("a", "\ntail");
+
+    assertEquals("head " + large + "\ntail", storage.get("a"));
+  }
+
+  @Test
+  public void legacyContent_readAsItIs() throws Exception {
+    String legacy = "zebra running\n\nbase {\"json\":1}\n";
+    fileStorage.put("a", legacy);
+
+    assertEquals(legacy, storage.get("a"));
+
+    storage.append("a", "new");
+    assertEquals(legacy + "new", storage.get("a"));
+  }
+
+  @Test
+  public void dictionary_roundTrip_wrongDictionaryUnreadable() throws Exception {
+    String sample = repeat("{\"deviceId\":\"abc\",\"event\":\"click\"}", 10);
+    byte[] dictionary = CompressedStorage.trainDictionary(Arrays.asList(sample, sample + "x"), 1024);
+    CompressedStorage withDictionary = new CompressedStorage(fileStorage, 64, dictionary);
+
+    withDictionary.put("a", sample);
+
+    assertEquals(sample, withDictionary.get("a"));
+    assertNull(storage.get("a"));
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+}
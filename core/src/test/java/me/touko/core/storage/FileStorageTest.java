@@ -0,0 +1,272 @@
+package me.touko.core.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FileStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void putGetAppendDelete() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+
+    assertTrue(storage.put("a", "1"));
+    assertTrue(storage.append("a", "2"));
+    assertEquals("12", storage.get("a"));
+    assertTrue(storage.has("a"));
+    assertTrue(storage.check("a"));
+    assertTrue(storage.delete("a"));
+    assertFalse(storage.has("a"));
+    assertNull(storage.get("a"));
+  }
+
+  @Test
+  public void sharded_filesInShardDirs() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1, true);
+
+    storage.put("a", "1");
+
+    File file = storage.getStorageFile("a");
+    assertEquals(folder.getRoot(), file.getParentFile().getParentFile().getParentFile());
+    assertEquals("1", storage.get("a"));
+  }
+
+  @Test
+  public void layoutConverted_bothWays() throws Exception {
+    String path = folder.getRoot().getPath();
+    FileStorage flat = new FileStorage(path, 1);
+    for (int i = 0; i < 20; i++) {
+      flat.put("key" + i, "value" + i);
+    }
+
+    FileStorage sharded = new FileStorage(path, 1, true);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("value" + i, sharded.get("key" + i));
+    }
+
+    flat = new FileStorage(path, 1);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("value" + i, flat.get("key" + i));
+    }
+    assertEquals(0, countDirs(folder.getRoot()));
+  }
+
+  @Test
+  public void layoutConversion_renameFailed_fileKeptAndRetried() throws Exception {
+    String path = folder.getRoot().getPath();
+    FileStorage sharded = new FileStorage(path, 1, true);
+    sharded.put("a", "1");
+    sharded.put("b", "2");
+    File shardedFile = sharded.getStorageFile("a");
+    // a non empty dir at the flat path of "a" makes its rename fail
+    File blocker = new File(folder.getRoot(), shardedFile.getName());
+    assertTrue(new File(blocker, "x").mkdirs());
+
+    FileStorage flat = new FileStorage(path, 1);
+    assertEquals("2", flat.get("b"));
+    assertTrue(shardedFile.exists());
+
+    assertTrue(new File(blocker, "x").delete());
+    assertTrue(blocker.delete());
+    flat = new FileStorage(path, 1);
+    assertEquals("1", flat.get("a"));
+    assertFalse(shardedFile.exists());
+    assertEquals(0, countDirs(folder.getRoot()));
+  }
+
+  @Test
+  public void scan_flat_ascending() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+    putKeys(storage, "pending_b", "pending_a", "sending_a", "other");
+    storage.backup("pending_a");
+
+    assertEquals(Arrays.asList("pending_a", "pending_b"), toList(storage.scanPrefix("pending_")));
+    assertEquals(Arrays.asList("other", "pending_a"), toList(storage.scanRange(null, "pending_b")));
+    assertEquals(Arrays.asList("other", "pending_a", "pending_b", "sending_a"), toList(storage.getKeys().iterator()));
+  }
+
+  @Test
+  public void scan_sharded_allKeysFound() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1, true);
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      storage.put("pending_" + i, "v");
+      expected.add("pending_" + i);
+    }
+    storage.put("sending_1", "v");
+
+    assertEquals(expected, new HashSet<>(toList(storage.scanPrefix("pending_"))));
+    assertEquals(101, storage.getKeys().size());
+  }
+
+  @Test
+  public void scan_sharded_ascending() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1, true);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      storage.put("pending_" + (1000 + i), "v");
+      expected.add("pending_" + (1000 + i));
+    }
+
+    assertEquals(expected, toList(storage.scanPrefix("pending_")));
+    assertEquals(expected.subList(10, 20), toList(storage.scanRange("pending_1010", "pending_1020")));
+  }
+
+  @Test
+  public void scan_legacyFiles_inOrderWithoutDuplicates() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage.put("b", "v");
+    storage.put("c", "v");
+    // content of old version not migrated yet, "b" is also written after migration started
+    new File(folder.getRoot(), "file_storage_~legacy~a").createNewFile();
+    new File(folder.getRoot(), "file_storage_~legacy~b").createNewFile();
+
+    assertEquals(Arrays.asList("a", "b", "c"), toList(storage.scanPrefix("")));
+  }
+
+  @Test
+  public void corruptedFrame_checkFails_getCutsAtLastGoodFrame() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage.put("a", "hello");
+    storage.append("a", " world");
+    storage.append("a", "!");
+    File file = storage.getStorageFile("a");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(file.length() - 11);
+    randomAccessFile.write('X');
+    randomAccessFile.close();
+
+    assertFalse(storage.check("a"));
+    assertEquals("hello", storage.get("a"));
+    assertTrue(storage.check("a"));
+    assertEquals(1, storage.getQuarantinedFiles().size());
+    storage.clearQuarantine();
+    assertTrue(storage.getQuarantinedFiles().isEmpty());
+  }
+
+  @Test
+  public void corruptedFirstFrame_getQuarantines() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage.put("a", "hello");
+    File file = storage.getStorageFile("a");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(file.length() - 1);
+    randomAccessFile.write('X');
+    randomAccessFile.close();
+
+    assertNull(storage.get("a"));
+    assertFalse(storage.has("a"));
+    assertEquals(1, storage.getQuarantinedFiles().size());
+  }
+
+  @Test
+  public void tornFrame_checkFails() throws Exception {
+    FileStorage storage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage.put("a", "hello");
+    storage.append("a", " world");
+    File file = storage.getStorageFile("a");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 3);
+    randomAccessFile.close();
+
+    assertFalse(storage.check("a"));
+  }
+
+  @Test
+  public void tornFrame_afterRestart_appendNotHidden() throws Exception {
+    String path = folder.getRoot().getPath();
+    FileStorage storage = new FileStorage(path, 1);
+    storage.put("a", "hello");
+    storage.append("a", " world");
+    File file = storage.getStorageFile("a");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 3);
+    randomAccessFile.close();
+
+    FileStorage restarted = new FileStorage(path, 1);
+    assertTrue(restarted.append("a", " again"));
+
+    assertEquals("hello again", restarted.get("a"));
+    assertTrue(restarted.check("a"));
+    assertEquals(1, restarted.getQuarantinedFiles().size());
+  }
+
+  @Test
+  public void unframedFile_readAsIs() throws Exception {
+    String path = folder.getRoot().getPath();
+    new FileStorage(path, 1).put("a", "x");
+    FileStorage storage = new FileStorage(path, 1);
+    FileOutputStream outputStream = new FileOutputStream(storage.getStorageFile("a"));
+    outputStream.write("written before framing".getBytes("utf-8"));
+    outputStream.close();
+
+    assertTrue(storage.check("a"));
+    assertEquals("written before framing", storage.get("a"));
+    assertTrue(storage.append("a", "+"));
+    assertEquals("written before framing+", storage.get("a"));
+  }
+
+  @Test
+  public void migration_resumedAfterRestart_eachKeyMigratedOnce() throws Exception {
+    String path = folder.getRoot().getPath();
+    FileStorage old = new FileStorage(path, 1);
+    for (int i = 0; i < 20; i++) {
+      old.put("key" + i, "value" + i);
+    }
+    Migration migration = new Migration(1, 2) {
+      @Override
+      public String migrate(String key, String content) {
+        return content + "+";
+      }
+    };
+
+    FileStorage first = new FileStorage(path, 2, migration);
+    assertEquals("value0+", first.get("key0"));
+
+    // the restarted storage continue with the legacy keys left
+    FileStorage restarted = new FileStorage(path, 2, migration);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("value" + i + "+", restarted.get("key" + i));
+    }
+    assertEquals(20, restarted.getKeys().size());
+  }
+
+  private static void putKeys(Storage storage, String... keys) {
+    for (String key : keys) {
+      assertTrue(storage.put(key, "v"));
+    }
+  }
+
+  private static List<String> toList(Iterator<String> iterator) {
+    List<String> list = new ArrayList<>();
+    while (iterator.hasNext()) {
+      list.add(iterator.next());
+    }
+    return list;
+  }
+
+  private static int countDirs(File dir) {
+    int count = 0;
+    File[] files = dir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      if (files[i].isDirectory()) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
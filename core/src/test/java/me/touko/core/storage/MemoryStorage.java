@@ -0,0 +1,97 @@
+package me.touko.core.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * a storage in memory implement only the required methods of {@link Storage}, like an external implementation
+ */
+public class MemoryStorage implements Storage {
+  private final TreeMap<String, String> contents = new TreeMap<>();
+  private final Map<String, String> backups = new HashMap<>();
+
+  @Override
+  public synchronized boolean put(String key, String content) {
+    contents.put(key, content);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean append(String key, String content) {
+    String old = contents.get(key);
+    contents.put(key, old == null ? content : old + content);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean delete(String key) {
+    return contents.remove(key) != null;
+  }
+
+  @Override
+  public synchronized boolean rename(String srcKey, String targetKey) {
+    String content = contents.remove(srcKey);
+    if (content == null) {
+      return false;
+    }
+    contents.put(targetKey, content);
+    return true;
+  }
+
+  @Override
+  public synchronized void clear() {
+    contents.clear();
+  }
+
+  @Override
+  public synchronized boolean has(String key) {
+    return contents.containsKey(key);
+  }
+
+  @Override
+  public synchronized String get(String key) {
+    return contents.get(key);
+  }
+
+  @Override
+  public synchronized long size(String key) {
+    String content = contents.get(key);
+    return content == null ? 0 : content.length();
+  }
+
+  @Override
+  public synchronized Set<String> getKeys() {
+    return new java.util.TreeSet<>(contents.keySet());
+  }
+
+  @Override
+  public int getVersion() {
+    return 1;
+  }
+
+  @Override
+  public File getStorageDir() {
+    return null;
+  }
+
+  @Override
+  public synchronized void backup(String key) {
+    backups.put(key, contents.get(key));
+  }
+
+  @Override
+  public synchronized boolean removeBackup(String key) {
+    return backups.remove(key) != null;
+  }
+
+  @Override
+  public synchronized void recover(String key) {
+    String content = backups.get(key);
+    if (content != null) {
+      contents.put(key, content);
+    }
+  }
+}
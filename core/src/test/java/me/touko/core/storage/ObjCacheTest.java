@@ -0,0 +1,101 @@
+package me.touko.core.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import me.touko.core.utils.MemoryPressureMonitor;
+
+import static org.junit.Assert.*;
+
+public class ObjCacheTest {
+  // 2 bytes per char and 64 bytes overhead
+  private static final long ENTRY_BYTES = 10 * 2 + 64;
+
+  @Test
+  public void overCount_leastRecentlyUsedEvicted() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(2, 10000);
+    cache.put("a", items("a"), 10);
+    cache.put("b", items("b"), 10);
+    cache.get("a");
+
+    cache.put("c", items("c"), 10);
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2 * ENTRY_BYTES, cache.getBytes());
+  }
+
+  @Test
+  public void overBytes_evicted() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(100, ENTRY_BYTES * 2);
+    cache.put("a", items("a"), 10);
+    cache.put("b", items("b"), 10);
+    cache.put("c", items("c"), 10);
+
+    assertEquals(2, cache.getCount());
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void putIfUnchanged_writeDuringRead_notCached() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(10, 10000);
+    long writeCount = cache.getWriteCount();
+    cache.beginWrite();
+
+    cache.putIfUnchanged("a", items("stale"), 10, writeCount);
+
+    assertNull(cache.get("a"));
+    cache.putIfUnchanged("a", items("fresh"), 10, cache.getWriteCount());
+    assertEquals(items("fresh"), cache.get("a"));
+  }
+
+  @Test
+  public void rename_replacesTarget() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(10, 10000);
+    cache.put("a", items("a"), 10);
+    cache.put("b", items("b"), 10);
+
+    cache.rename("a", "b");
+
+    assertNull(cache.get("a"));
+    assertEquals(items("a"), cache.get("b"));
+    assertEquals(ENTRY_BYTES, cache.getBytes());
+  }
+
+  @Test
+  public void memoryPressure_halfThenAll() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(10, 10000);
+    for (int i = 0; i < 4; i++) {
+      cache.put("key" + i, items("v"), 10);
+    }
+
+    cache.onMemoryPressure(MemoryPressureMonitor.PRESSURE_MODERATE);
+    assertEquals(2, cache.getCount());
+    assertNotNull(cache.get("key3"));
+
+    cache.onMemoryPressure(MemoryPressureMonitor.PRESSURE_CRITICAL);
+    assertEquals(0, cache.getCount());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void resize_evictsOverNewLimits() throws Exception {
+    ObjCache<String> cache = new ObjCache<>(10, 10000);
+    for (int i = 0; i < 4; i++) {
+      cache.put("key" + i, items("v"), 10);
+    }
+
+    cache.resize(1, 10000);
+
+    assertEquals(1, cache.getCount());
+    assertNotNull(cache.get("key3"));
+  }
+
+  private static List<String> items(String item) {
+    return Arrays.asList(item);
+  }
+}
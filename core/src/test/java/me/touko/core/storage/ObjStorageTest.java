@@ -0,0 +1,88 @@
+package me.touko.core.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ObjStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FileStorage fileStorage;
+  private GsonObjStorage<Item> storage;
+
+  @Before
+  public void setUp() throws Exception {
+    fileStorage = new FileStorage(folder.getRoot().getPath(), 1);
+    storage = new GsonObjStorage<>(Item.class, fileStorage);
+  }
+
+  @Test
+  public void putAppendGet() throws Exception {
+    storage.put("a", new Item("1"));
+    storage.append("a", Arrays.asList(new Item("2"), new Item("3")));
+
+    assertEquals(3, storage.length("a"));
+    assertEquals("1", storage.getFirst("a").name);
+  }
+
+  @Test
+  public void brokenItem_skipped_othersReadable() throws Exception {
+    storage.put("a", new Item("1"));
+    fileStorage.append("a", "\n{broken");
+    storage.append("a", new Item("3"));
+
+    List<Item> items = storage.get("a");
+
+    assertEquals(2, items.size());
+    assertEquals("1", items.get(0).name);
+    assertEquals("3", items.get(1).name);
+    assertTrue(storage.has("a"));
+    assertTrue(fileStorage.getQuarantinedFiles().isEmpty());
+  }
+
+  @Test
+  public void brokenItem_skipped_withCache() throws Exception {
+    storage.setCache(new ObjCache<Item>(16, 1024 * 1024));
+    storage.put("a", new Item("1"));
+    fileStorage.append("a", "\n{broken");
+
+    assertEquals(1, storage.length("a"));
+    assertTrue(storage.has("a"));
+  }
+
+  @Test
+  public void checkAndQuarantine_verifiableStorage() throws Exception {
+    storage.put("a", new Item("1"));
+
+    assertTrue(storage.check("a"));
+    assertTrue(storage.quarantine("a"));
+    assertFalse(storage.has("a"));
+    assertEquals(1, fileStorage.getQuarantinedFiles().size());
+  }
+
+  @Test
+  public void checkAndQuarantine_otherStorage_fallback() throws Exception {
+    GsonObjStorage<Item> memory = new GsonObjStorage<>(Item.class, new MemoryStorage());
+    memory.append("a", new Item("1"));
+
+    assertTrue(memory.check("a"));
+    assertFalse(memory.check("b"));
+    assertTrue(memory.quarantine("a"));
+    assertFalse(memory.has("a"));
+  }
+
+  static class Item {
+    String name;
+
+    Item(String name) {
+      this.name = name;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package me.touko.core.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ObservableStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ObservableStorage storage;
+  private final List<Map<String, Integer>> notified = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new ObservableStorage(new FileStorage(folder.getRoot().getPath(), 1), new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    storage.addStorageObserver(new ObservableStorage.StorageObserver() {
+      @Override
+      public void onStorageChanged(Map<String, Integer> changes) {
+        notified.add(changes);
+      }
+    });
+  }
+
+  @Test
+  public void put_newKey_notifiedAsCreate() throws Exception {
+    storage.put("a", "1");
+
+    assertEquals(1, notified.size());
+    assertEquals(ObservableStorage.CHANGE_PUT | ObservableStorage.CHANGE_CREATE, (int) notified.get(0).get("a"));
+  }
+
+  @Test
+  public void put_existingKey_notCreate() throws Exception {
+    storage.put("a", "1");
+    storage.put("a", "2");
+    storage.append("a", "3");
+
+    assertEquals(3, notified.size());
+    assertEquals(ObservableStorage.CHANGE_PUT, (int) notified.get(1).get("a"));
+    assertEquals(ObservableStorage.CHANGE_PUT, (int) notified.get(2).get("a"));
+  }
+
+  @Test
+  public void rename_notifiesDeleteAndRename() throws Exception {
+    storage.put("a", "1");
+    storage.rename("a", "b");
+
+    assertEquals(ObservableStorage.CHANGE_DELETE, (int) notified.get(1).get("a"));
+    assertEquals(ObservableStorage.CHANGE_RENAME, (int) notified.get(2).get("b"));
+  }
+}
@@ -0,0 +1,41 @@
+package me.touko.core.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Base64UtilsTest {
+  @Test
+  public void rfc4648Vectors() throws Exception {
+    String[] plain = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+    String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+    for (int i = 0; i < plain.length; i++) {
+      assertEquals(encoded[i], Base64Utils.encode(plain[i].getBytes("utf-8")));
+      assertEquals(plain[i], new String(Base64Utils.decode(encoded[i]), "utf-8"));
+    }
+    assertEquals("fo", new String(Base64Utils.decode("Zm8"), "utf-8"));
+  }
+
+  @Test
+  public void roundTrip_allByteValues() throws Exception {
+    Random random = new Random(1);
+    for (int length = 0; length < 64; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      assertArrayEquals(bytes, Base64Utils.decode(Base64Utils.encode(bytes)));
+    }
+    assertEquals("+/8=", Base64Utils.encode(new byte[]{(byte) 0xfb, (byte) 0xff}));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badChar_rejected() throws Exception {
+    Base64Utils.decode("Zm9v\n");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badLength_rejected() throws Exception {
+    Base64Utils.decode("Zm9vY");
+  }
+}
@@ -0,0 +1,140 @@
+package me.touko.core.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class KeyedExecutorTest {
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final KeyedExecutor keyedExecutor = new KeyedExecutor(executor);
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sameKey_runOneByOneInOrder() throws Exception {
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(50);
+    for (int i = 0; i < 50; i++) {
+      final int index = i;
+      keyedExecutor.execute("a", new Runnable() {
+        @Override
+        public void run() {
+          if (running.incrementAndGet() > 1) {
+            overlapped.set(true);
+          }
+          order.add(index);
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(overlapped.get());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  @Test
+  public void differentKeys_runInParallel() throws Exception {
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final CountDownLatch done = new CountDownLatch(2);
+    for (String key : Arrays.asList("a", "b")) {
+      keyedExecutor.execute(key, new Runnable() {
+        @Override
+        public void run() {
+          bothStarted.countDown();
+          try {
+            if (bothStarted.await(5, TimeUnit.SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void multiKeyTask_waitsForEarlierTasksOfAllKeys() throws Exception {
+    final CountDownLatch releaseB = new CountDownLatch(1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(4);
+    keyedExecutor.execute("a", new RecordTask("a1", order, done, null));
+    keyedExecutor.execute("b", new RecordTask("b1", order, done, releaseB));
+    keyedExecutor.execute(Arrays.asList("a", "b"), new RecordTask("ab", order, done, null));
+    keyedExecutor.execute("a", new RecordTask("a2", order, done, null));
+
+    Thread.sleep(100);
+    assertEquals(Arrays.asList("a1"), order);
+    releaseB.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a1", "b1", "ab", "a2"), order);
+  }
+
+  @Test
+  public void failedTask_laterTasksStillRun() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    keyedExecutor.execute("a", new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("expected by test");
+      }
+    });
+    keyedExecutor.execute("a", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  private static class RecordTask implements Runnable {
+    private final String name;
+    private final List<String> order;
+    private final CountDownLatch done;
+    private final CountDownLatch waitBefore;
+
+    RecordTask(String name, List<String> order, CountDownLatch done, CountDownLatch waitBefore) {
+      this.name = name;
+      this.order = order;
+      this.done = done;
+      this.waitBefore = waitBefore;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (waitBefore != null) {
+          waitBefore.await(5, TimeUnit.SECONDS);
+        }
+      } catch (InterruptedException ignored) {
+      }
+      order.add(name);
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package me.touko.core.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryPressureMonitorTest {
+  private final List<Integer> received = new ArrayList<>();
+  private final MemoryPressureMonitor.Listener failing = new MemoryPressureMonitor.Listener() {
+    @Override
+    public void onMemoryPressure(int pressure) {
+      throw new IllegalStateException("expected by test");
+    }
+  };
+  private final MemoryPressureMonitor.Listener recording = new MemoryPressureMonitor.Listener() {
+    @Override
+    public void onMemoryPressure(int pressure) {
+      received.add(pressure);
+    }
+  };
+
+  @After
+  public void tearDown() throws Exception {
+    MemoryPressureMonitor.removeListener(failing);
+    MemoryPressureMonitor.removeListener(recording);
+  }
+
+  @Test
+  public void dispatch_failingListenerDoesNotStopOthers() throws Exception {
+    MemoryPressureMonitor.addListener(failing);
+    MemoryPressureMonitor.addListener(recording);
+
+    MemoryPressureMonitor.dispatch(MemoryPressureMonitor.PRESSURE_MODERATE);
+    MemoryPressureMonitor.dispatch(MemoryPressureMonitor.PRESSURE_CRITICAL);
+
+    assertEquals(Arrays.asList(MemoryPressureMonitor.PRESSURE_MODERATE, MemoryPressureMonitor.PRESSURE_CRITICAL),
+        received);
+  }
+
+  @Test
+  public void removedListener_notCalled() throws Exception {
+    MemoryPressureMonitor.addListener(recording);
+    MemoryPressureMonitor.removeListener(recording);
+
+    MemoryPressureMonitor.dispatch(MemoryPressureMonitor.PRESSURE_CRITICAL);
+
+    assertTrue(received.isEmpty());
+  }
+
+  @Test
+  public void getRecentPressure_withinWindow() throws Exception {
+    MemoryPressureMonitor.dispatch(MemoryPressureMonitor.PRESSURE_MODERATE);
+
+    assertEquals(MemoryPressureMonitor.PRESSURE_MODERATE, MemoryPressureMonitor.getRecentPressure(60000));
+    Thread.sleep(20);
+    assertEquals(0, MemoryPressureMonitor.getRecentPressure(10));
+  }
+}
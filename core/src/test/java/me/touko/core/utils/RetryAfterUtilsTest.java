@@ -0,0 +1,46 @@
+package me.touko.core.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryAfterUtilsTest {
+  // Sun, 06 Nov 1994 08:49:37 GMT
+  private static final long DATE = 784111777000L;
+
+  @Test
+  public void parseRetryAfter_deltaSeconds() throws Exception {
+    assertEquals(120000, RetryAfterUtils.parseRetryAfter(" 120 ", DATE));
+    assertEquals(0, RetryAfterUtils.parseRetryAfter("0", DATE));
+  }
+
+  @Test
+  public void parseRetryAfter_httpDate() throws Exception {
+    assertEquals(60000, RetryAfterUtils.parseRetryAfter("Sun, 06 Nov 1994 08:50:37 GMT", DATE));
+    assertEquals(0, RetryAfterUtils.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", DATE + 5000));
+  }
+
+  @Test
+  public void parseRetryAfter_invalid() throws Exception {
+    assertEquals(-1, RetryAfterUtils.parseRetryAfter(null, DATE));
+    assertEquals(-1, RetryAfterUtils.parseRetryAfter("", DATE));
+    assertEquals(-1, RetryAfterUtils.parseRetryAfter("-5", DATE));
+    assertEquals(-1, RetryAfterUtils.parseRetryAfter("soon", DATE));
+  }
+
+  @Test
+  public void parseHttpDate_allFormats() throws Exception {
+    assertEquals(DATE, RetryAfterUtils.parseHttpDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+    assertEquals(DATE, RetryAfterUtils.parseHttpDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+    assertEquals(DATE, RetryAfterUtils.parseHttpDate("Sun Nov 6 08:49:37 1994"));
+  }
+
+  @Test
+  public void parseRateLimitReset_deltaOrEpochSeconds() throws Exception {
+    long now = 1500000000000L;
+    assertEquals(30000, RetryAfterUtils.parseRateLimitReset("30", now));
+    assertEquals(10000, RetryAfterUtils.parseRateLimitReset("1500000010", now));
+    assertEquals(0, RetryAfterUtils.parseRateLimitReset("1499999990", now));
+    assertEquals(-1, RetryAfterUtils.parseRateLimitReset("x", now));
+  }
+}
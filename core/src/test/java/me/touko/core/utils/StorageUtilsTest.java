@@ -0,0 +1,47 @@
+package me.touko.core.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import me.touko.core.storage.MemoryStorage;
+
+import static org.junit.Assert.*;
+
+public class StorageUtilsTest {
+  @Test
+  public void scan_storageWithoutScan_filteredFromKeys() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    for (String key : Arrays.asList("a", "pending_1", "pending_2", "sending_1")) {
+      storage.put(key, "v");
+    }
+
+    assertEquals(Arrays.asList("pending_1", "pending_2"), sorted(StorageUtils.scanPrefix(storage, "pending_")));
+    assertEquals(Arrays.asList("a", "pending_1"), sorted(StorageUtils.scanRange(storage, null, "pending_2")));
+    assertEquals(Arrays.asList("sending_1"), sorted(StorageUtils.scanRange(storage, "s", null)));
+  }
+
+  @Test
+  public void checkAndQuarantine_storageWithoutVerify() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    storage.put("a", "v");
+
+    assertTrue(StorageUtils.check(storage, "a"));
+    assertFalse(StorageUtils.check(storage, "b"));
+    assertTrue(StorageUtils.quarantine(storage, "a"));
+    assertFalse(storage.has("a"));
+  }
+
+  private static List<String> sorted(Iterator<String> iterator) {
+    List<String> list = new ArrayList<>();
+    while (iterator.hasNext()) {
+      list.add(iterator.next());
+    }
+    Collections.sort(list);
+    return list;
+  }
+}